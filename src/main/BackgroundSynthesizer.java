@@ -0,0 +1,151 @@
+package main;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Builds a background image from a set of screenshots taken with the same
+ * camera position, by finding the most common colour of each pixel.
+ *
+ * Sprites move around, so at any given point the background should be
+ * visible in most screenshots. Rather than holding every screenshot in
+ * memory, screenshots are added one at a time, and each pixel keeps just a
+ * few candidate colours with counters (the Misra-Gries "frequent items"
+ * algorithm). Any colour that appears in more than 1 / (NUM_CANDIDATES + 1) of
+ * the screenshots at a given point is guaranteed to survive as a candidate.
+ */
+public class BackgroundSynthesizer {
+
+    /**
+     * Number of candidate colours tracked for each pixel.
+     */
+    private static final int NUM_CANDIDATES = 4;
+
+    /**
+     * Width of the screenshots.
+     */
+    private final int width;
+
+    /**
+     * Height of the screenshots.
+     */
+    private final int height;
+
+    /**
+     * Candidate colours of each pixel, NUM_CANDIDATES per pixel.
+     */
+    private final int[] candidates;
+
+    /**
+     * Counter of each candidate colour; a candidate is unused if its counter
+     * is 0.
+     */
+    private final int[] counts;
+
+    /**
+     * Number of screenshots added so far.
+     */
+    private int numImages;
+
+    /**
+     * Creates a BackgroundSynthesizer for screenshots of the given size.
+     * 
+     * @param width
+     * @param height
+     */
+    public BackgroundSynthesizer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        candidates = new int[width * height * NUM_CANDIDATES];
+        counts = new int[width * height * NUM_CANDIDATES];
+    }
+
+    /**
+     * Adds a screenshot.
+     * 
+     * @param image
+     */
+    public void add(BufferedImage image) {
+
+        if (image.getWidth() != width || image.getHeight() != height) {
+            throw new IllegalArgumentException(
+                    "All screenshots must be the same size");
+        }
+
+        int[] pixels = ImageUtils.getPixels(image);
+
+        for (int i = 0; i < pixels.length; i++) {
+            addColour(i * NUM_CANDIDATES, pixels[i]);
+        }
+
+        numImages++;
+    }
+
+    /**
+     * Counts one occurrence of a colour at a pixel.
+     * 
+     * @param start Index of the pixel's first candidate.
+     * @param colour
+     */
+    private void addColour(int start, int colour) {
+
+        int end = start + NUM_CANDIDATES;
+        int free = -1;
+
+        for (int c = start; c < end; c++) {
+            if (counts[c] == 0) {
+                free = c;
+            } else if (candidates[c] == colour) {
+                counts[c]++;
+                return;
+            }
+        }
+
+        if (free >= 0) {
+            candidates[free] = colour;
+            counts[free] = 1;
+            return;
+        }
+
+        // No room for a new candidate, so this occurrence cancels out one
+        // occurrence of every existing candidate
+        for (int c = start; c < end; c++) {
+            counts[c]--;
+        }
+    }
+
+    /**
+     * Gets the number of screenshots added so far.
+     * 
+     * @return
+     */
+    public int getNumImages() {
+        return numImages;
+    }
+
+    /**
+     * Creates the background image, using the strongest candidate colour of
+     * each pixel.
+     * 
+     * @return
+     */
+    public BufferedImage build() {
+
+        BufferedImage background =
+                new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ImageUtils.getPixels(background);
+
+        for (int i = 0; i < pixels.length; i++) {
+            int start = i * NUM_CANDIDATES;
+            int best = start;
+            for (int c = start + 1; c < start + NUM_CANDIDATES; c++) {
+                if (counts[c] > counts[best]) {
+                    best = c;
+                }
+            }
+            pixels[i] = candidates[best];
+        }
+
+        return background;
+    }
+
+}
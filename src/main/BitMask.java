@@ -0,0 +1,231 @@
+package main;
+
+/**
+ * Compact two-dimensional mask that stores a single bit per pixel.
+ * 
+ * Each row is padded to a whole number of 64-bit words, so that rows can be
+ * scanned a word at a time.
+ */
+public class BitMask {
+
+    /**
+     * Width of the mask (pixels).
+     */
+    private final int width;
+
+    /**
+     * Height of the mask (pixels).
+     */
+    private final int height;
+
+    /**
+     * Number of 64-bit words used to store each row.
+     */
+    private final int wordsPerRow;
+
+    /**
+     * Mask data, in row-major order.
+     */
+    private final long[] words;
+
+    /**
+     * Creates an empty BitMask of the given size.
+     * 
+     * @param width
+     * @param height
+     */
+    public BitMask(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.wordsPerRow = (width + 63) >>> 6;
+        this.words = new long[wordsPerRow * height];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Determines whether the bit at the given position is set.
+     * 
+     * @param x
+     * @param y
+     * @return
+     */
+    public boolean get(int x, int y) {
+        return (words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    /**
+     * Gets the bit at the given position, as an int.
+     * 
+     * This is convenient when counting set bits.
+     * 
+     * @param x
+     * @param y
+     * @return 1 if the bit is set, otherwise 0.
+     */
+    public int getBit(int x, int y) {
+        return (int) (words[y * wordsPerRow + (x >>> 6)] >>> x) & 1;
+    }
+
+    /**
+     * Sets the bit at the given position.
+     * 
+     * @param x
+     * @param y
+     */
+    public void set(int x, int y) {
+        words[y * wordsPerRow + (x >>> 6)] |= 1L << x;
+    }
+
+    /**
+     * Gets the 64-bit word containing the bit at the given position.
+     * 
+     * Bit n of the result corresponds to the pixel at ((x & ~63) + n, y).
+     * This allows callers to skip over 64 unset bits at a time.
+     * 
+     * @param x
+     * @param y
+     * @return
+     */
+    public long getWord(int x, int y) {
+        return words[y * wordsPerRow + (x >>> 6)];
+    }
+
+    /**
+     * Sets a run of bits, starting at the given position.
+     * 
+     * Bit n of the given value corresponds to the pixel at (x + n, y). Any
+     * bits that fall beyond the end of the row are ignored.
+     * 
+     * @param x
+     * @param y
+     * @param bits
+     */
+    public void setBits(int x, int y, long bits) {
+
+        if (x + 64 > width) {
+            bits &= -1L >>> (x + 64 - width);
+        }
+
+        int index = y * wordsPerRow + (x >>> 6);
+        int shift = x & 63;
+        words[index] |= bits << shift;
+
+        if (shift != 0 && (bits >>> (64 - shift)) != 0) {
+            words[index + 1] |= bits >>> (64 - shift);
+        }
+    }
+
+    /**
+     * Clears the bit at the given position.
+     * 
+     * @param x
+     * @param y
+     */
+    public void clear(int x, int y) {
+        words[y * wordsPerRow + (x >>> 6)] &= ~(1L << x);
+    }
+
+    /**
+     * Sets every bit that is set in another mask of the same size.
+     * 
+     * @param other
+     */
+    public void or(BitMask other) {
+
+        if (other.width != width || other.height != height) {
+            throw new IllegalArgumentException("Masks are not the same size");
+        }
+
+        for (int i = 0; i < words.length; i++) {
+            words[i] |= other.words[i];
+        }
+    }
+
+    /**
+     * Clears every bit that is not set in another mask of the same size.
+     * 
+     * @param other
+     */
+    public void and(BitMask other) {
+
+        if (other.width != width || other.height != height) {
+            throw new IllegalArgumentException("Masks are not the same size");
+        }
+
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= other.words[i];
+        }
+    }
+
+    /**
+     * Creates a mask in which every bit is set that is set in this mask, or
+     * in any of its 8 neighbours.
+     * 
+     * @return
+     */
+    public BitMask dilate() {
+
+        BitMask result = new BitMask(width, height);
+
+        // Mask of the bits of the last word in each row that are within the
+        // row
+        long lastWordMask = -1L >>> (wordsPerRow * 64 - width);
+
+        // Grow each row horizontally
+        long[] grown = new long[words.length];
+        for (int y = 0; y < height; y++) {
+            int start = y * wordsPerRow;
+            for (int w = 0; w < wordsPerRow; w++) {
+                long word = words[start + w];
+                long bits = word | (word << 1) | (word >>> 1);
+                if (w > 0) {
+                    bits |= words[start + w - 1] >>> 63;
+                }
+                if (w < wordsPerRow - 1) {
+                    bits |= words[start + w + 1] << 63;
+                } else {
+                    bits &= lastWordMask;
+                }
+                grown[start + w] = bits;
+            }
+        }
+
+        // Then vertically
+        for (int y = 0; y < height; y++) {
+            int start = y * wordsPerRow;
+            for (int w = 0; w < wordsPerRow; w++) {
+                long bits = grown[start + w];
+                if (y > 0) {
+                    bits |= grown[start - wordsPerRow + w];
+                }
+                if (y < height - 1) {
+                    bits |= grown[start + wordsPerRow + w];
+                }
+                result.words[start + w] = bits;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Counts the number of set bits.
+     * 
+     * @return
+     */
+    public int count() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,83 @@
+package main;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Cheap test that can decide some pixels on its own, as one stage of a
+ * CascadingPixelPatternMatcher.
+ *
+ * A stage may declare a pixel to be background, declare it to be foreground,
+ * or leave it undecided for the next stage. Like PixelPatternMatchers, stages
+ * must be safe to share between threads, and must never modify the image.
+ */
+public interface CascadeStage {
+
+    /**
+     * Decision meaning that the pixel belongs to the background.
+     */
+    int BACKGROUND = 1;
+
+    /**
+     * Decision meaning that the pixel does not belong to the background.
+     */
+    int FOREGROUND = 0;
+
+    /**
+     * Decision meaning that this stage cannot tell.
+     */
+    int UNDECIDED = -1;
+
+    /**
+     * Gets a short name for this stage, for reporting.
+     * 
+     * @return
+     */
+    String getName();
+
+    /**
+     * Decides the given pixel, if possible.
+     * 
+     * @param image
+     * @param x
+     * @param y
+     * @return BACKGROUND, FOREGROUND or UNDECIDED.
+     */
+    int decide(BufferedImage image, int x, int y);
+
+    /**
+     * Decides as many of the undecided pixels as possible.
+     * 
+     * The bit of each pixel this stage decides is cleared from undecided, and
+     * if the pixel belongs to the background, its bit is set in background.
+     * 
+     * The default implementation calls decide for each undecided pixel;
+     * implementations are encouraged to override this with something faster.
+     * 
+     * @param image
+     * @param background
+     * @param undecided
+     */
+    default void decideAll(BufferedImage image, BitMask background,
+            BitMask undecided) {
+
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+
+                if (!undecided.get(x, y)) {
+                    continue;
+                }
+
+                int decision = decide(image, x, y);
+                if (decision == UNDECIDED) {
+                    continue;
+                }
+
+                undecided.clear(x, y);
+                if (decision == BACKGROUND) {
+                    background.set(x, y);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+package main;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PixelPatternMatcher that runs a series of cheap stages before falling back
+ * to a full (expensive) matcher.
+ *
+ * Most pixels in a screenshot are trivially background (identical to the
+ * background image) or trivially foreground (a colour that never appears in
+ * the background), so each stage decides whatever it can, and passes the rest
+ * on to the next. The full matcher only examines the pixels that no stage
+ * could decide.
+ *
+ * The fraction of pixels decided by each stage is reported for every
+ * screenshot, which helps to choose the stages worth running.
+ */
+public class CascadingPixelPatternMatcher implements PixelPatternMatcher {
+
+    /**
+     * Cheap stages, in the order they are run.
+     */
+    private final List<CascadeStage> stages;
+
+    /**
+     * Matcher used for any pixels the stages leave undecided.
+     */
+    private final PixelPatternMatcher matcher;
+
+    /**
+     * Creates a CascadingPixelPatternMatcher.
+     * 
+     * @param stages Stages to run, in order.
+     * @param matcher Matcher for any pixels the stages leave undecided.
+     */
+    public CascadingPixelPatternMatcher(
+            List<? extends CascadeStage> stages,
+            PixelPatternMatcher matcher) {
+        this.stages = new ArrayList<>(stages);
+        this.matcher = matcher;
+    }
+
+    @Override
+    public boolean matches(BufferedImage image, int x, int y) {
+
+        for (CascadeStage stage : stages) {
+            int decision = stage.decide(image, x, y);
+            if (decision != CascadeStage.UNDECIDED) {
+                return decision == CascadeStage.BACKGROUND;
+            }
+        }
+
+        return matcher.matches(image, x, y);
+    }
+
+    @Override
+    public BitMask matchAll(BufferedImage image) {
+        return matchAll(image, null);
+    }
+
+    /**
+     * Only the candidate pixels are passed through the stages, or all pixels
+     * if candidates is null.
+     */
+    @Override
+    public BitMask matchAll(BufferedImage image, BitMask candidates) {
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BitMask result = new BitMask(width, height);
+        BitMask undecided = new BitMask(width, height);
+
+        // Edge pixels are never matched, so they start out decided
+        for (int y = 1; y < height - 1; y++) {
+            for (int x = 1; x < width - 1; x++) {
+                if (candidates == null || candidates.get(x, y)) {
+                    undecided.set(x, y);
+                }
+            }
+        }
+
+        int numPixels = undecided.count();
+        StringBuilder report = new StringBuilder("Cascade:");
+
+        for (CascadeStage stage : stages) {
+            int before = undecided.count();
+            stage.decideAll(image, result, undecided);
+            report.append(' ')
+                    .append(stage.getName())
+                    .append(' ')
+                    .append(percentage(before - undecided.count(), numPixels))
+                    .append(',');
+        }
+
+        int remaining = undecided.count();
+        if (remaining > 0) {
+            result.or(matcher.matchAll(image, undecided));
+        }
+
+        report.append(" full check ").append(percentage(remaining, numPixels));
+        System.out.println(report);
+
+        return result;
+    }
+
+    /**
+     * Formats a number of pixels as a percentage of a total.
+     * 
+     * @param count
+     * @param total
+     * @return
+     */
+    private static String percentage(int count, int total) {
+        double percent = total == 0 ? 0 : 100.0 * count / total;
+        return String.format("%.1f%%", percent);
+    }
+
+}
@@ -0,0 +1,61 @@
+package main;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * CascadeStage that rejects any pixel whose colour never appears in the
+ * background texture.
+ *
+ * This is a single bit test per pixel (see NeighbourhoodModel), and in most
+ * screenshots it decides the bulk of the foreground.
+ */
+public class ColourPresenceStage implements CascadeStage {
+
+    /**
+     * Learned composition of the background texture.
+     */
+    private final NeighbourhoodModel model;
+
+    /**
+     * Creates a ColourPresenceStage.
+     * 
+     * @param model
+     */
+    public ColourPresenceStage(NeighbourhoodModel model) {
+        this.model = model;
+    }
+
+    @Override
+    public String getName() {
+        return "colour presence";
+    }
+
+    @Override
+    public int decide(BufferedImage image, int x, int y) {
+        return model.mightContainColour(image.getRGB(x, y))
+                ? UNDECIDED
+                : FOREGROUND;
+    }
+
+    @Override
+    public void decideAll(BufferedImage image, BitMask background,
+            BitMask undecided) {
+
+        int width = image.getWidth();
+        int[] pixels = ImageUtils.getPixels(image);
+
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < width; x++) {
+                if (undecided.getWord(x, y) == 0) {
+                    // Skip the rest of this word
+                    x |= 63;
+                    continue;
+                }
+                if (!model.mightContainColour(pixels[y * width + x])) {
+                    undecided.clear(x, y);
+                }
+            }
+        }
+    }
+
+}
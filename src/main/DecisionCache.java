@@ -0,0 +1,200 @@
+package main;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of boolean decisions, keyed by 64-bit window fingerprints.
+ *
+ * The cache is set-associative: each key maps to a small set of slots, and
+ * when a set is full, the entry to evict is chosen using the CLOCK algorithm
+ * (an approximation of LRU). Each entry has a "referenced" bit that is set
+ * whenever it is hit; the clock hand sweeps the set, clearing referenced bits,
+ * until it finds an entry that has not been used since the hand last passed.
+ *
+ * The cache is safe for use by multiple threads without locking. Each entry
+ * (key and decision) is packed into a single long, which is always read and
+ * written atomically, so a lookup can never see half of an entry. The
+ * referenced bits and clock hands are only hints, so races on them merely
+ * make eviction slightly less accurate.
+ */
+public class DecisionCache {
+
+    /**
+     * Value returned by get when a key is not present.
+     */
+    public static final int MISS = -1;
+
+    /**
+     * Number of slots in each set.
+     */
+    private static final int WAYS = 4;
+
+    /**
+     * Bit of an entry that holds the decision; the remaining bits hold the
+     * key.
+     */
+    private static final long DECISION_BIT = 1L;
+
+    /**
+     * Value of an empty slot.
+     */
+    private static final long EMPTY = 0L;
+
+    /**
+     * Entries of all slots, grouped by set.
+     */
+    private final AtomicLongArray entries;
+
+    /**
+     * Whether each slot has been hit since the clock hand last passed.
+     */
+    private final boolean[] referenced;
+
+    /**
+     * Position of the clock hand within each set.
+     */
+    private final byte[] hands;
+
+    /**
+     * Bitmask used to wrap set indices (number of sets - 1).
+     */
+    private final int setMask;
+
+    /**
+     * Number of lookups that found an entry.
+     */
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * Number of lookups that did not find an entry.
+     */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates an empty DecisionCache.
+     * 
+     * @param capacity Maximum number of entries; rounded up to a power of 2.
+     */
+    public DecisionCache(int capacity) {
+        int numSets = Integer.highestOneBit(
+                Math.max(1, (capacity + WAYS - 1) / WAYS) * 2 - 1);
+        entries = new AtomicLongArray(numSets * WAYS);
+        referenced = new boolean[numSets * WAYS];
+        hands = new byte[numSets];
+        setMask = numSets - 1;
+    }
+
+    /**
+     * Gets the decision cached for the given key.
+     * 
+     * This does not update the hit and miss counts; callers should tally
+     * their lookups and report them via recordLookups, so that the shared
+     * counters are not touched for every pixel.
+     * 
+     * @param key
+     * @return 1 if the decision is true, 0 if it is false, or MISS if the key
+     *         is not present.
+     */
+    public int get(long key) {
+
+        long tag = key & ~DECISION_BIT;
+        if (tag == EMPTY) {
+            // This key cannot be stored
+            return MISS;
+        }
+
+        int start = setOf(key) * WAYS;
+
+        for (int slot = start; slot < start + WAYS; slot++) {
+            long entry = entries.getOpaque(slot);
+            if ((entry & ~DECISION_BIT) == tag) {
+                referenced[slot] = true;
+                return (int) (entry & DECISION_BIT);
+            }
+        }
+
+        return MISS;
+    }
+
+    /**
+     * Caches a decision for the given key.
+     * 
+     * @param key
+     * @param decision
+     */
+    public void put(long key, boolean decision) {
+
+        long tag = key & ~DECISION_BIT;
+        if (tag == EMPTY) {
+            // This key cannot be stored
+            return;
+        }
+
+        int set = setOf(key);
+        int start = set * WAYS;
+        int hand = hands[set];
+
+        // Advance the clock hand until we find an unreferenced slot (empty
+        // slots are never referenced). This gives up after one sweep, in case
+        // other threads keep setting referenced bits.
+        for (int i = 0; i < WAYS && referenced[start + hand]; i++) {
+            referenced[start + hand] = false;
+            hand = (hand + 1) % WAYS;
+        }
+
+        int slot = start + hand;
+        entries.setOpaque(slot, decision ? tag | DECISION_BIT : tag);
+        referenced[slot] = false;
+        hands[set] = (byte) ((hand + 1) % WAYS);
+    }
+
+    /**
+     * Adds to the hit and miss counts.
+     * 
+     * @param numHits
+     * @param numMisses
+     */
+    public void recordLookups(long numHits, long numMisses) {
+        hits.add(numHits);
+        misses.add(numMisses);
+    }
+
+    /**
+     * Gets the maximum number of entries.
+     * 
+     * @return
+     */
+    public int getCapacity() {
+        return entries.length();
+    }
+
+    /**
+     * Gets the number of lookups that found an entry.
+     * 
+     * @return
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of lookups that did not find an entry.
+     * 
+     * @return
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Determines the set to which the given key belongs.
+     * 
+     * @param key
+     * @return
+     */
+    private int setOf(long key) {
+        return IntIntHashMap.hash(Long.hashCode(key)) & setMask;
+    }
+
+}
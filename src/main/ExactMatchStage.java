@@ -0,0 +1,164 @@
+package main;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * CascadeStage that accepts any pixel whose whole 3x3 block is exactly the
+ * same as the background image at the same position.
+ *
+ * This only makes sense when the background image is a screenshot of the
+ * actual background, with the same size and position as the screenshots
+ * being processed. If a screenshot is a different size, this stage leaves all
+ * of its pixels undecided.
+ *
+ * Every 3x3 block of the background image is part of the texture learned in
+ * SMART mode, so any pixel accepted here would also have been accepted by the
+ * full check, provided that the model uses a 3x3 neighbourhood (radius 1)
+ * and keeps every neighbour it has seen (minimum count 1). With a larger
+ * radius, or a pruned model, this stage must not be used.
+ */
+public class ExactMatchStage implements CascadeStage {
+
+    /**
+     * Pixels of the (cropped) background, as packed ARGB values in row-major
+     * order.
+     */
+    private final int[] background;
+
+    /**
+     * Width of the (cropped) background.
+     */
+    private final int width;
+
+    /**
+     * Height of the (cropped) background.
+     */
+    private final int height;
+
+    /**
+     * Creates an ExactMatchStage.
+     * 
+     * @param background
+     * @param borderLeft
+     * @param borderTop
+     * @param borderRight
+     * @param borderBottom
+     */
+    public ExactMatchStage(
+            BufferedImage background,
+            int borderLeft,
+            int borderTop,
+            int borderRight,
+            int borderBottom) {
+
+        // Cut the background to the part we are interested in, just like we do
+        // for the image being processed
+        BufferedImage subImage = background.getSubimage(
+                borderLeft,
+                borderTop,
+                background.getWidth() - (borderLeft + borderRight),
+                background.getHeight() - (borderTop + borderBottom));
+
+        this.background = ImageUtils.getPixels(subImage);
+        this.width = subImage.getWidth();
+        this.height = subImage.getHeight();
+    }
+
+    @Override
+    public String getName() {
+        return "exact";
+    }
+
+    @Override
+    public int decide(BufferedImage image, int x, int y) {
+
+        if (!isSameSize(image)
+                || x < 1 || y < 1 || x >= width - 1 || y >= height - 1) {
+            return UNDECIDED;
+        }
+
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                if (image.getRGB(x + dx, y + dy)
+                        != background[(y + dy) * width + x + dx]) {
+                    return UNDECIDED;
+                }
+            }
+        }
+
+        return BACKGROUND;
+    }
+
+    /**
+     * Uses a sliding sum over a plane of "equals background" bits, as in
+     * ExactPixelPatternMatcher, to find the pixels whose whole 3x3 block is
+     * equal.
+     */
+    @Override
+    public void decideAll(BufferedImage image, BitMask result,
+            BitMask undecided) {
+
+        if (!isSameSize(image) || width < 3 || height < 3) {
+            return;
+        }
+
+        // Only undecided pixels and their neighbours need to be compared
+        int[] pixels = ImageUtils.getPixels(image);
+        BitMask needed = undecided.dilate();
+        BitMask equal = new BitMask(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (needed.getWord(x, y) == 0) {
+                    // Skip the rest of this word
+                    x |= 63;
+                    continue;
+                }
+                int i = y * width + x;
+                if (pixels[i] == background[i]) {
+                    equal.set(x, y);
+                }
+            }
+        }
+
+        // Number of equal pixels in each column, within the 3 rows centred on
+        // the current row
+        int[] columnCounts = new int[width];
+        for (int x = 0; x < width; x++) {
+            columnCounts[x] = equal.getBit(x, 0)
+                    + equal.getBit(x, 1)
+                    + equal.getBit(x, 2);
+        }
+
+        for (int y = 1; y < height - 1; y++) {
+
+            if (y > 1) {
+                // Slide the column counts down by 1 row
+                for (int x = 0; x < width; x++) {
+                    columnCounts[x] += equal.getBit(x, y + 1)
+                            - equal.getBit(x, y - 2);
+                }
+            }
+
+            for (int x = 1; x < width - 1; x++) {
+                if (undecided.get(x, y)
+                        && columnCounts[x - 1]
+                                + columnCounts[x]
+                                + columnCounts[x + 1] == 9) {
+                    undecided.clear(x, y);
+                    result.set(x, y);
+                }
+            }
+        }
+    }
+
+    /**
+     * Determines whether the given image is the same size as the background.
+     * 
+     * @param image
+     * @return
+     */
+    private boolean isSameSize(BufferedImage image) {
+        return image.getWidth() == width && image.getHeight() == height;
+    }
+
+}
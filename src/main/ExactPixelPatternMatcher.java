@@ -1,6 +1,7 @@
 package main;
 
 import java.awt.image.BufferedImage;
+import java.lang.reflect.Constructor;
 
 /**
  * PixelPatternMatcher that expects pixels to *exactly* match the corresponding
@@ -18,9 +19,31 @@ import java.awt.image.BufferedImage;
  */
 public class ExactPixelPatternMatcher implements PixelPatternMatcher {
 
-    private BufferedImage background;
+    /**
+     * Name of the module providing the Vector API.
+     */
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+    /**
+     * Name of the class that implements this matcher using the Vector API.
+     * 
+     * This is compiled separately (see README), so it may not be present.
+     */
+    private static final String VECTOR_MATCHER_CLASS =
+            "main.VectorExactPixelPatternMatcher";
+
+    /**
+     * Pixels of the (cropped) background, as packed ARGB values in row-major
+     * order.
+     */
+    final int[] background;
+
+    /**
+     * Width of the (cropped) background.
+     */
+    final int width;
     
-    private int strictness;
+    final int strictness;
     
     public ExactPixelPatternMatcher(
             BufferedImage background,
@@ -32,19 +55,95 @@ public class ExactPixelPatternMatcher implements PixelPatternMatcher {
         
         // Cut the background to the part we are interested in, just like we do
         // for the image being processed
-        this.background = background.getSubimage(
+        BufferedImage subImage = background.getSubimage(
                 borderLeft,
                 borderTop,
                 background.getWidth() - (borderLeft + borderRight),
                 background.getHeight() - (borderTop + borderBottom));
 
+        // Flatten the background up-front so we never have to go through the
+        // ColorModel while matching
+        this.background = ImageUtils.getPixels(subImage);
+        this.width = subImage.getWidth();
+
+        this.strictness = strictness;
+    }
+
+    /**
+     * Creates an ExactPixelPatternMatcher from an already-flattened
+     * background.
+     * 
+     * @param background
+     * @param width
+     * @param strictness
+     */
+    ExactPixelPatternMatcher(int[] background, int width, int strictness) {
+        this.background = background;
+        this.width = width;
         this.strictness = strictness;
     }
     
+    /**
+     * Creates the fastest ExactPixelPatternMatcher available.
+     * 
+     * If the Vector API module is present at runtime and the SIMD
+     * implementation has been compiled, that is used; otherwise, this falls
+     * back to the scalar implementation.
+     * 
+     * @param background
+     * @param strictness
+     * @param borderLeft
+     * @param borderTop
+     * @param borderRight
+     * @param borderBottom
+     * @return
+     */
+    public static ExactPixelPatternMatcher create(
+            BufferedImage background,
+            int strictness,
+            int borderLeft,
+            int borderTop,
+            int borderRight,
+            int borderBottom) {
+
+        if (ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) {
+            try {
+                Constructor<?> constructor = Class.forName(VECTOR_MATCHER_CLASS)
+                        .getConstructor(
+                                BufferedImage.class,
+                                int.class,
+                                int.class,
+                                int.class,
+                                int.class,
+                                int.class);
+                ExactPixelPatternMatcher matcher =
+                        (ExactPixelPatternMatcher) constructor.newInstance(
+                                background,
+                                strictness,
+                                borderLeft,
+                                borderTop,
+                                borderRight,
+                                borderBottom);
+                System.out.println("Using Vector API");
+                return matcher;
+            } catch (ReflectiveOperationException | LinkageError ex) {
+                System.out.println("Vector API is unavailable");
+            }
+        }
+
+        return new ExactPixelPatternMatcher(
+                background,
+                strictness,
+                borderLeft,
+                borderTop,
+                borderRight,
+                borderBottom);
+    }
+
     @Override
     public boolean matches(BufferedImage image, int x, int y) {
         
-        if (image.getRGB(x, y) != background.getRGB(x, y)) {
+        if (!matchesBackground(image.getRGB(x, y), x, y)) {
             // The pixel does not match the background
             return false;
         }
@@ -53,57 +152,197 @@ public class ExactPixelPatternMatcher implements PixelPatternMatcher {
         int validNeighbours = 0;
 
         // North
-        if (image.getRGB(x, y - 1) == background.getRGB(x, y - 1)) {
+        if (matchesBackground(image.getRGB(x, y - 1), x, y - 1)) {
             validNeighbours++;
         }
 
         // North-east
-        if (image.getRGB(x + 1, y - 1) == background.getRGB(x + 1, y - 1)) {
+        if (matchesBackground(image.getRGB(x + 1, y - 1), x + 1, y - 1)) {
             validNeighbours++;
         }
 
         // East
-        if (image.getRGB(x + 1, y) == background.getRGB(x + 1, y)) {
+        if (matchesBackground(image.getRGB(x + 1, y), x + 1, y)) {
             validNeighbours++;
         }
 
         // South-east
-        if (image.getRGB(x + 1, y + 1) == background.getRGB(x + 1, y + 1)) {
+        if (matchesBackground(image.getRGB(x + 1, y + 1), x + 1, y + 1)) {
             validNeighbours++;
         }
 
         // South
-        if (image.getRGB(x, y + 1) == background.getRGB(x, y + 1)) {
+        if (matchesBackground(image.getRGB(x, y + 1), x, y + 1)) {
             validNeighbours++;
         }
 
         // South-west
-        if (image.getRGB(x - 1, y + 1) == background.getRGB(x - 1, y + 1)) {
+        if (matchesBackground(image.getRGB(x - 1, y + 1), x - 1, y + 1)) {
             validNeighbours++;
         }
 
         // West
-        if (image.getRGB(x - 1, y) == background.getRGB(x - 1, y)) {
+        if (matchesBackground(image.getRGB(x - 1, y), x - 1, y)) {
             validNeighbours++;
         }
 
         // North-west
-        if (image.getRGB(x - 1, y - 1) == background.getRGB(x - 1, y - 1)) {
+        if (matchesBackground(image.getRGB(x - 1, y - 1), x - 1, y - 1)) {
             validNeighbours++;
         }
 
-        if (validNeighbours >= strictness) {
-            return true;
+        return validNeighbours >= strictness;
+    }
+
+    /**
+     * Determines whether the given colour matches the background at the given
+     * position.
+     * 
+     * @param colour
+     * @param x
+     * @param y
+     * @return
+     */
+    boolean matchesBackground(int colour, int x, int y) {
+        return colour == background[y * width + x];
+    }
+
+    @Override
+    public BitMask matchAll(BufferedImage image) {
+        return classify(image).getBackground();
+    }
+
+    /**
+     * Rather than comparing each pixel up to 9 times (once for itself, and once
+     * as a neighbour of each of its neighbours), this compares each pixel
+     * exactly once to produce a plane of "equals background" bits. The number
+     * of matching neighbours of each pixel is then obtained from a sliding 3x3
+     * sum over that plane.
+     * 
+     * Pixels that match the background but do not have enough valid
+     * neighbours are recorded as uncertain.
+     */
+    @Override
+    public MatchResult classify(BufferedImage image) {
+        return classify(image, null);
+    }
+
+    /**
+     * Only the candidate pixels are classified, or all pixels if candidates
+     * is null. Pixels that are neither candidates nor neighbours of a
+     * candidate are not compared to the background at all.
+     */
+    @Override
+    public MatchResult classify(BufferedImage image, BitMask candidates) {
+
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+        BitMask result = new BitMask(imageWidth, imageHeight);
+        BitMask uncertain = new BitMask(imageWidth, imageHeight);
+
+        if (imageWidth < 3 || imageHeight < 3) {
+            // No pixels have a complete neighbourhood
+            return new MatchResult(result, uncertain);
         }
-        
-        System.out.println("Pixel matches background, but only has " +
-                validNeighbours + " valid neighbours!");
-        
-        if (SpriteExtractor.DebugFlags.HIGHLIGHT_UNCERTAIN_PIXELS) {
-            image.setRGB(x, y, SpriteExtractor.DebugFlags.HIGHLIGHT_COLOUR);
+
+        BitMask equal = findEqualPixels(image,
+                candidates != null ? candidates.dilate() : null);
+
+        // Number of equal pixels in each column, within the 3 rows centred on
+        // the current row
+        int[] columnCounts = new int[imageWidth];
+        for (int x = 0; x < imageWidth; x++) {
+            columnCounts[x] = equal.getBit(x, 0)
+                    + equal.getBit(x, 1)
+                    + equal.getBit(x, 2);
         }
-        
-        return false;
+
+        for (int y = 1; y < imageHeight - 1; y++) {
+
+            if (y > 1) {
+                // Slide the column counts down by 1 row (skipping words in
+                // which neither row has any equal pixels)
+                for (int x = 0; x < imageWidth; x++) {
+                    if ((equal.getWord(x, y + 1)
+                            | equal.getWord(x, y - 2)) == 0) {
+                        x |= 63;
+                        continue;
+                    }
+                    columnCounts[x] += equal.getBit(x, y + 1)
+                            - equal.getBit(x, y - 2);
+                }
+            }
+
+            for (int x = 1; x < imageWidth - 1; x++) {
+
+                if (equal.getWord(x, y) == 0) {
+                    // None of the rest of this word match the background
+                    x |= 63;
+                    continue;
+                }
+
+                if (!equal.get(x, y)) {
+                    // The pixel does not match the background
+                    continue;
+                }
+
+                if (candidates != null && !candidates.get(x, y)) {
+                    continue;
+                }
+
+                // Sum the 3x3 window, excluding the pixel itself
+                int validNeighbours = columnCounts[x - 1]
+                        + columnCounts[x]
+                        + columnCounts[x + 1]
+                        - 1;
+
+                if (validNeighbours >= strictness) {
+                    result.set(x, y);
+                    continue;
+                }
+
+                uncertain.set(x, y);
+            }
+        }
+
+        return new MatchResult(result, uncertain);
+    }
+
+    /**
+     * Compares the pixels of the given image to the background.
+     * 
+     * Pixels that are not needed are skipped a word (64 pixels) at a time, so
+     * some of them may be compared as well.
+     * 
+     * @param image
+     * @param needed Mask in which the bits of all pixels to be compared are
+     *        set, or null to compare every pixel.
+     * @return Mask in which the bits of all compared pixels that are the same
+     *         colour as the background are set.
+     */
+    BitMask findEqualPixels(BufferedImage image, BitMask needed) {
+
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+        int[] pixels = ImageUtils.getPixels(image);
+        BitMask equal = new BitMask(imageWidth, imageHeight);
+
+        for (int y = 0; y < imageHeight; y++) {
+            int i = y * imageWidth;
+            int j = y * width;
+            for (int x = 0; x < imageWidth; x++) {
+                if (needed != null && needed.getWord(x, y) == 0) {
+                    // Skip the rest of this word
+                    x |= 63;
+                    continue;
+                }
+                if (pixels[i + x] == background[j + x]) {
+                    equal.set(x, y);
+                }
+            }
+        }
+
+        return equal;
     }
 
 }
@@ -0,0 +1,139 @@
+package main;
+
+/**
+ * Fast Fourier transforms of complex data.
+ *
+ * Data is held as separate arrays of real and imaginary parts, and is
+ * transformed in place. All dimensions must be powers of 2.
+ */
+public final class Fft {
+
+    /**
+     * Prevent this class from being instantiated.
+     */
+    private Fft() {}
+
+    /**
+     * Gets the smallest power of 2 that is at least the given value.
+     * 
+     * @param n
+     * @return
+     */
+    public static int nextPowerOfTwo(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /**
+     * Transforms the given 1-dimensional data in place, using the iterative
+     * radix-2 Cooley-Tukey algorithm.
+     * 
+     * @param re Real parts.
+     * @param im Imaginary parts.
+     * @param inverse True to perform the inverse transform (which includes
+     *        the 1/n scaling factor).
+     */
+    public static void transform(double[] re, double[] im, boolean inverse) {
+
+        int n = re.length;
+        if (Integer.bitCount(n) != 1 || im.length != n) {
+            throw new IllegalArgumentException(
+                    "Length must be a power of 2: " + n);
+        }
+
+        // Reorder the elements by bit-reversed index
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                double tmp = re[i];
+                re[i] = re[j];
+                re[j] = tmp;
+                tmp = im[i];
+                im[i] = im[j];
+                im[j] = tmp;
+            }
+        }
+
+        // Combine transforms of increasing length
+        for (int length = 2; length <= n; length <<= 1) {
+
+            double angle = (inverse ? 2 : -2) * Math.PI / length;
+            double stepRe = Math.cos(angle);
+            double stepIm = Math.sin(angle);
+            int half = length >> 1;
+
+            for (int start = 0; start < n; start += length) {
+
+                double wRe = 1;
+                double wIm = 0;
+
+                for (int k = 0; k < half; k++) {
+
+                    int a = start + k;
+                    int b = a + half;
+
+                    double tRe = re[b] * wRe - im[b] * wIm;
+                    double tIm = re[b] * wIm + im[b] * wRe;
+                    re[b] = re[a] - tRe;
+                    im[b] = im[a] - tIm;
+                    re[a] += tRe;
+                    im[a] += tIm;
+
+                    // Rotate the twiddle factor
+                    double nextRe = wRe * stepRe - wIm * stepIm;
+                    wIm = wRe * stepIm + wIm * stepRe;
+                    wRe = nextRe;
+                }
+            }
+        }
+
+        if (inverse) {
+            for (int i = 0; i < n; i++) {
+                re[i] /= n;
+                im[i] /= n;
+            }
+        }
+    }
+
+    /**
+     * Transforms the given 2-dimensional data in place, by transforming each
+     * row and then each column.
+     * 
+     * @param re Real parts, in row-major order.
+     * @param im Imaginary parts, in row-major order.
+     * @param width
+     * @param height
+     * @param inverse True to perform the inverse transform.
+     */
+    public static void transform2D(double[] re, double[] im, int width,
+            int height, boolean inverse) {
+
+        double[] lineRe = new double[width];
+        double[] lineIm = new double[width];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(re, y * width, lineRe, 0, width);
+            System.arraycopy(im, y * width, lineIm, 0, width);
+            transform(lineRe, lineIm, inverse);
+            System.arraycopy(lineRe, 0, re, y * width, width);
+            System.arraycopy(lineIm, 0, im, y * width, width);
+        }
+
+        lineRe = new double[height];
+        lineIm = new double[height];
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                lineRe[y] = re[y * width + x];
+                lineIm[y] = im[y * width + x];
+            }
+            transform(lineRe, lineIm, inverse);
+            for (int y = 0; y < height; y++) {
+                re[y * width + x] = lineRe[y];
+                im[y * width + x] = lineIm[y];
+            }
+        }
+    }
+
+}
@@ -3,9 +3,12 @@ package main;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -144,6 +147,31 @@ public final class ImageUtils {
         return bytesToHex(hash);
     }
 
+    /**
+     * Generates an MD5 hash of the given image's dimensions and pixel data.
+     * 
+     * Unlike generateHash, this does not need to encode the image first, so
+     * it is much faster for large images.
+     * 
+     * @param image
+     * @return
+     * @throws NoSuchAlgorithmException
+     */
+    public static String generatePixelHash(BufferedImage image)
+            throws NoSuchAlgorithmException {
+
+        int[] pixels = getPixels(image);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + pixels.length * 4);
+        buffer.putInt(image.getWidth());
+        buffer.putInt(image.getHeight());
+        buffer.asIntBuffer().put(pixels);
+
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        md.update(buffer.array());
+        byte[] hash = md.digest();
+        return bytesToHex(hash);
+    }
+
     /**
      * Creates a hex string from the given byte array.
      * 
@@ -153,7 +181,7 @@ public final class ImageUtils {
      * @param bytes
      * @return
      */
-    private static String bytesToHex(byte[] bytes) {
+    static String bytesToHex(byte[] bytes) {
         char[] hexChars = new char[bytes.length * 2];
         for ( int j = 0; j < bytes.length; j++ ) {
             int v = bytes[j] & 0xFF;
@@ -188,5 +216,36 @@ public final class ImageUtils {
         
         return newImage;
     }
+
+    /**
+     * Gets the pixels of the given image as packed ARGB values, in row-major
+     * order.
+     * 
+     * If the image is backed by a plain TYPE_INT_ARGB raster (as produced by
+     * copyImage and copySubimage), the backing array is returned directly, so
+     * no conversion is required. Otherwise, the pixels are copied into a new
+     * array.
+     * 
+     * @param image
+     * @return
+     */
+    public static int[] getPixels(BufferedImage image) {
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        WritableRaster raster = image.getRaster();
+
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB
+                && raster.getParent() == null
+                && raster.getDataBuffer() instanceof DataBufferInt) {
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            int[] data = buffer.getData();
+            if (buffer.getOffset() == 0 && data.length == width * height) {
+                return data;
+            }
+        }
+
+        return image.getRGB(0, 0, width, height, null, 0, width);
+    }
     
 }
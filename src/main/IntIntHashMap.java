@@ -0,0 +1,213 @@
+package main;
+
+import java.util.Arrays;
+
+/**
+ * Map of int keys to non-negative int values, that does not box its entries.
+ *
+ * Entries are stored in a single array using open addressing with linear
+ * probing, so a lookup is usually a single cache line access.
+ */
+public class IntIntHashMap {
+
+    /**
+     * Value returned by get when a key is not present.
+     */
+    public static final int NOT_FOUND = -1;
+
+    /**
+     * Maximum proportion of slots that may be occupied before the table
+     * grows.
+     */
+    private static final float LOAD_FACTOR = 0.5f;
+
+    /**
+     * Interleaved keys and values; a slot is empty if its value is NOT_FOUND.
+     */
+    private int[] table;
+
+    /**
+     * Bitmask used to wrap slot indices (number of slots - 1).
+     */
+    private int mask;
+
+    /**
+     * Number of entries in the map.
+     */
+    private int size;
+
+    /**
+     * Creates an empty IntIntHashMap.
+     */
+    public IntIntHashMap() {
+        this(16);
+    }
+
+    /**
+     * Creates an empty IntIntHashMap with room for the given number of
+     * entries.
+     * 
+     * @param expectedSize
+     */
+    public IntIntHashMap(int expectedSize) {
+        int slots = Integer.highestOneBit(
+                Math.max(4, (int) (expectedSize / LOAD_FACTOR)) * 2 - 1);
+        allocate(slots);
+    }
+
+    /**
+     * Gets the value associated with the given key.
+     * 
+     * @param key
+     * @return The value, or NOT_FOUND if the key is not present.
+     */
+    public int get(int key) {
+        int slot = hash(key) & mask;
+        while (true) {
+            int value = table[slot * 2 + 1];
+            if (value == NOT_FOUND || table[slot * 2] == key) {
+                return value;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Associates the given value with the given key.
+     * 
+     * @param key
+     * @param value Must not be negative.
+     */
+    public void put(int key, int value) {
+
+        if (value < 0) {
+            throw new IllegalArgumentException(
+                    "Value must not be negative: " + value);
+        }
+
+        int slot = hash(key) & mask;
+        while (table[slot * 2 + 1] != NOT_FOUND) {
+            if (table[slot * 2] == key) {
+                table[slot * 2 + 1] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        table[slot * 2] = key;
+        table[slot * 2 + 1] = value;
+        size++;
+
+        if (size > (mask + 1) * LOAD_FACTOR) {
+            resize();
+        }
+    }
+
+    /**
+     * Adds an amount to the value associated with the given key, treating a
+     * missing key as having the value 0.
+     * 
+     * This makes the map convenient for counting. Values saturate at
+     * Integer.MAX_VALUE rather than overflowing.
+     * 
+     * @param key
+     * @param amount Must not be negative.
+     */
+    public void add(int key, int amount) {
+
+        int slot = hash(key) & mask;
+        while (table[slot * 2 + 1] != NOT_FOUND) {
+            if (table[slot * 2] == key) {
+                int value = table[slot * 2 + 1] + amount;
+                table[slot * 2 + 1] = value < 0 ? Integer.MAX_VALUE : value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        put(key, amount);
+    }
+
+    /**
+     * Adds the value of every entry in another map to the value associated
+     * with the same key in this one (see add).
+     * 
+     * @param other
+     */
+    public void addAll(IntIntHashMap other) {
+        for (int i = 0; i < other.table.length; i += 2) {
+            if (other.table[i + 1] != NOT_FOUND) {
+                add(other.table[i], other.table[i + 1]);
+            }
+        }
+    }
+
+    /**
+     * Copies the keys whose values are at least the given minimum into the
+     * given array, in ascending order.
+     * 
+     * @param dest
+     * @param offset Index at which to start writing.
+     * @param minValue
+     * @return Number of keys copied.
+     */
+    public int copySortedKeysTo(int[] dest, int offset, int minValue) {
+        int i = offset;
+        for (int slot = 0; slot < table.length; slot += 2) {
+            if (table[slot + 1] != NOT_FOUND && table[slot + 1] >= minValue) {
+                dest[i++] = table[slot];
+            }
+        }
+        Arrays.sort(dest, offset, i);
+        return i - offset;
+    }
+
+    /**
+     * Gets the number of entries in the map.
+     * 
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Allocates an empty table with the given number of slots.
+     * 
+     * @param slots Must be a power of 2.
+     */
+    private void allocate(int slots) {
+        table = new int[slots * 2];
+        mask = slots - 1;
+        for (int slot = 0; slot < slots; slot++) {
+            table[slot * 2 + 1] = NOT_FOUND;
+        }
+    }
+
+    /**
+     * Doubles the capacity of the table.
+     */
+    private void resize() {
+        int[] oldTable = table;
+        allocate((mask + 1) * 2);
+        size = 0;
+        for (int i = 0; i < oldTable.length; i += 2) {
+            if (oldTable[i + 1] != NOT_FOUND) {
+                put(oldTable[i], oldTable[i + 1]);
+            }
+        }
+    }
+
+    /**
+     * Scrambles the bits of a key, so that similar colours do not cluster
+     * together in the table.
+     * 
+     * @param key
+     * @return
+     */
+    static int hash(int key) {
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+}
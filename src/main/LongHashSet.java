@@ -0,0 +1,132 @@
+package main;
+
+/**
+ * Set of longs that does not box its elements.
+ *
+ * Elements are stored using open addressing with linear probing. Since 0 is
+ * used to mark empty slots, its presence is tracked separately.
+ */
+public class LongHashSet {
+
+    /**
+     * Maximum proportion of slots that may be occupied before the table
+     * grows.
+     */
+    private static final float LOAD_FACTOR = 0.5f;
+
+    /**
+     * Table of elements; a slot is empty if it contains 0.
+     */
+    private long[] table = new long[16];
+
+    /**
+     * Whether the set contains 0.
+     */
+    private boolean containsZero;
+
+    /**
+     * Number of elements in the set.
+     */
+    private int size;
+
+    /**
+     * Adds the given element to the set.
+     * 
+     * @param element
+     * @return True if the element was not already present.
+     */
+    public boolean add(long element) {
+
+        if (element == 0) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+
+        int mask = table.length - 1;
+        int slot = hash(element) & mask;
+        while (table[slot] != 0) {
+            if (table[slot] == element) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        table[slot] = element;
+        size++;
+
+        if (size > table.length * LOAD_FACTOR) {
+            resize();
+        }
+
+        return true;
+    }
+
+    /**
+     * Determines whether the given element is present in the set.
+     * 
+     * @param element
+     * @return
+     */
+    public boolean contains(long element) {
+
+        if (element == 0) {
+            return containsZero;
+        }
+
+        int mask = table.length - 1;
+        int slot = hash(element) & mask;
+        while (true) {
+            long value = table[slot];
+            if (value == element) {
+                return true;
+            }
+            if (value == 0) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Gets the number of elements in the set.
+     * 
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Doubles the capacity of the table.
+     */
+    private void resize() {
+        long[] oldTable = table;
+        table = new long[oldTable.length * 2];
+        int mask = table.length - 1;
+        for (long element : oldTable) {
+            if (element != 0) {
+                int slot = hash(element) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = element;
+            }
+        }
+    }
+
+    /**
+     * Folds an element down to a well-distributed int.
+     * 
+     * @param element
+     * @return
+     */
+    private static int hash(long element) {
+        long h = element * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+}
@@ -0,0 +1,62 @@
+package main;
+
+/**
+ * Result of classifying every pixel of an image.
+ *
+ * As well as the pixels that belong to the background, this records the
+ * "uncertain" pixels: those that look like the background, but were rejected
+ * because they did not have enough valid neighbours. These can be useful for
+ * diagnosing a poor choice of strictness.
+ */
+public class MatchResult {
+
+    /**
+     * Pixels that belong to the background.
+     */
+    private final BitMask background;
+
+    /**
+     * Pixels that match the background, but not enough of their neighbours.
+     */
+    private final BitMask uncertain;
+
+    /**
+     * Creates a MatchResult.
+     * 
+     * @param background
+     * @param uncertain
+     */
+    public MatchResult(BitMask background, BitMask uncertain) {
+        this.background = background;
+        this.uncertain = uncertain;
+    }
+
+    /**
+     * Gets the pixels that belong to the background.
+     * 
+     * @return
+     */
+    public BitMask getBackground() {
+        return background;
+    }
+
+    /**
+     * Gets the pixels that match the background, but do not have enough valid
+     * neighbours.
+     * 
+     * @return
+     */
+    public BitMask getUncertain() {
+        return uncertain;
+    }
+
+    /**
+     * Gets the number of uncertain pixels.
+     * 
+     * @return
+     */
+    public int getNumUncertain() {
+        return uncertain.count();
+    }
+
+}
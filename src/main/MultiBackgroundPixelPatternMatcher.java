@@ -0,0 +1,223 @@
+package main;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PixelPatternMatcher that holds a library of backgrounds, and picks the best
+ * one for each screenshot.
+ *
+ * Each background is summarised by a signature: the colours of a small, fixed
+ * grid of sample pixels. To select a background for a screenshot, the same
+ * pixels are sampled from the screenshot and compared to every signature; the
+ * background with the most matching samples wins. The signatures are stored
+ * contiguously, so this takes microseconds even for a large library, and is
+ * negligible compared to the classification itself.
+ *
+ * All backgrounds (after cropping) must be the same size as the screenshots.
+ */
+public class MultiBackgroundPixelPatternMatcher implements PixelPatternMatcher {
+
+    /**
+     * Number of sample pixels in each direction.
+     */
+    private static final int SAMPLES_PER_SIDE = 16;
+
+    /**
+     * Background selected for a screenshot.
+     */
+    private static final class Selection {
+
+        final BufferedImage image;
+        final PixelPatternMatcher matcher;
+
+        Selection(BufferedImage image, PixelPatternMatcher matcher) {
+            this.image = image;
+            this.matcher = matcher;
+        }
+    }
+
+    /**
+     * Matchers for each background.
+     */
+    private final List<PixelPatternMatcher> matchers;
+
+    /**
+     * Width of the (cropped) backgrounds.
+     */
+    private final int width;
+
+    /**
+     * Height of the (cropped) backgrounds.
+     */
+    private final int height;
+
+    /**
+     * Indices of the sample pixels.
+     */
+    private final int[] sampleIndices;
+
+    /**
+     * Signatures of all backgrounds, one after the other.
+     */
+    private final int[] signatures;
+
+    /**
+     * Background selected for the screenshot most recently processed by each
+     * thread.
+     */
+    private final ThreadLocal<Selection> selection = new ThreadLocal<>();
+
+    /**
+     * Creates a MultiBackgroundPixelPatternMatcher.
+     * 
+     * @param backgrounds
+     * @param matchers Matcher for each background, in the same order.
+     * @param borderLeft
+     * @param borderTop
+     * @param borderRight
+     * @param borderBottom
+     */
+    public MultiBackgroundPixelPatternMatcher(
+            List<BufferedImage> backgrounds,
+            List<? extends PixelPatternMatcher> matchers,
+            int borderLeft,
+            int borderTop,
+            int borderRight,
+            int borderBottom) {
+
+        if (backgrounds.isEmpty() || backgrounds.size() != matchers.size()) {
+            throw new IllegalArgumentException(
+                    "Expected one matcher for each background");
+        }
+
+        this.matchers = new ArrayList<>(matchers);
+
+        BufferedImage first = backgrounds.get(0);
+        width = first.getWidth() - (borderLeft + borderRight);
+        height = first.getHeight() - (borderTop + borderBottom);
+
+        // Spread the samples evenly, away from the edges
+        sampleIndices = new int[SAMPLES_PER_SIDE * SAMPLES_PER_SIDE];
+        for (int j = 0; j < SAMPLES_PER_SIDE; j++) {
+            int y = (2 * j + 1) * height / (2 * SAMPLES_PER_SIDE);
+            for (int i = 0; i < SAMPLES_PER_SIDE; i++) {
+                int x = (2 * i + 1) * width / (2 * SAMPLES_PER_SIDE);
+                sampleIndices[j * SAMPLES_PER_SIDE + i] = y * width + x;
+            }
+        }
+
+        signatures = new int[backgrounds.size() * sampleIndices.length];
+        for (int k = 0; k < backgrounds.size(); k++) {
+
+            BufferedImage background = backgrounds.get(k);
+            if (background.getWidth() != first.getWidth()
+                    || background.getHeight() != first.getHeight()) {
+                throw new IllegalArgumentException(
+                        "All backgrounds must be the same size");
+            }
+
+            int[] pixels = ImageUtils.getPixels(background.getSubimage(
+                    borderLeft, borderTop, width, height));
+            sample(pixels, signatures, k * sampleIndices.length);
+        }
+
+        System.out.println("Background library contains " +
+                backgrounds.size() + " backgrounds");
+    }
+
+    /**
+     * Reads the sample pixels from the given image.
+     * 
+     * @param pixels
+     * @param dest
+     * @param offset Index at which to start writing.
+     */
+    private void sample(int[] pixels, int[] dest, int offset) {
+        for (int s = 0; s < sampleIndices.length; s++) {
+            dest[offset + s] = pixels[sampleIndices[s]];
+        }
+    }
+
+    @Override
+    public boolean matches(BufferedImage image, int x, int y) {
+        return selectionFor(image).matcher.matches(image, x, y);
+    }
+
+    @Override
+    public BitMask matchAll(BufferedImage image) {
+        return selectionFor(image).matcher.matchAll(image);
+    }
+
+    @Override
+    public BitMask matchAll(BufferedImage image, BitMask candidates) {
+        return selectionFor(image).matcher.matchAll(image, candidates);
+    }
+
+    @Override
+    public MatchResult classify(BufferedImage image) {
+        return selectionFor(image).matcher.classify(image);
+    }
+
+    @Override
+    public MatchResult classify(BufferedImage image, BitMask candidates) {
+        return selectionFor(image).matcher.classify(image, candidates);
+    }
+
+    /**
+     * Gets the background selected for the given screenshot, selecting one if
+     * it has not been seen before.
+     * 
+     * @param image
+     * @return
+     */
+    private Selection selectionFor(BufferedImage image) {
+        Selection sel = selection.get();
+        if (sel == null || sel.image != image) {
+            sel = new Selection(image, matchers.get(select(image)));
+            selection.set(sel);
+        }
+        return sel;
+    }
+
+    /**
+     * Finds the background that best matches the given screenshot.
+     * 
+     * @param image
+     * @return Index of the background.
+     */
+    private int select(BufferedImage image) {
+
+        if (image.getWidth() != width || image.getHeight() != height) {
+            throw new IllegalArgumentException(
+                    "Screenshot is not the same size as the backgrounds");
+        }
+
+        int numSamples = sampleIndices.length;
+        int[] signature = new int[numSamples];
+        sample(ImageUtils.getPixels(image), signature, 0);
+
+        int best = 0;
+        int bestScore = -1;
+        for (int k = 0; k < matchers.size(); k++) {
+            int offset = k * numSamples;
+            int score = 0;
+            for (int s = 0; s < numSamples; s++) {
+                if (signature[s] == signatures[offset + s]) {
+                    score++;
+                }
+            }
+            if (score > bestScore) {
+                best = k;
+                bestScore = score;
+            }
+        }
+
+        System.out.println("Using background " + best + " (" + bestScore +
+                "/" + numSamples + " samples match)");
+
+        return best;
+    }
+
+}
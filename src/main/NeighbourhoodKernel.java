@@ -0,0 +1,23 @@
+package main;
+
+/**
+ * Whole-frame classification loop specialised for one NeighbourhoodModel and
+ * strictness (see NeighbourhoodKernelCompiler).
+ */
+interface NeighbourhoodKernel {
+
+    /**
+     * Classifies every pixel of an image whose colours have been converted to
+     * palette indices.
+     * 
+     * @param paletteIndices Palette index of each pixel, in row-major order,
+     *        with unknown colours given the model's unknown palette index.
+     * @param width
+     * @param height
+     * @param candidates Pixels to check, or null to check all pixels.
+     * @param result Mask in which to set the bits of background pixels.
+     */
+    void classify(int[] paletteIndices, int width, int height,
+            BitMask candidates, BitMask result);
+
+}
@@ -0,0 +1,253 @@
+package main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+/**
+ * Generates a NeighbourhoodKernel for a specific model, with the model
+ * compiled into the code.
+ *
+ * If the palette fits in a single 64-bit word, each adjacency matrix row is a
+ * single long, so the whole model can be written out as constants: the
+ * kernel has one small method per colour, which counts the valid neighbours
+ * using shifts of constants, with no loads from the model at all. This gives
+ * the JIT compiler a straight-line loop that it can unroll and optimise
+ * freely, instead of a chain of array lookups.
+ *
+ * The source is compiled in memory using the system Java compiler, and loaded
+ * as a hidden class, so it can be unloaded along with the matcher. If the
+ * compiler is unavailable (e.g. when running on a JRE), no kernel is created.
+ */
+final class NeighbourhoodKernelCompiler {
+
+    /**
+     * Largest palette size (including the unknown palette index) for which a
+     * kernel can be generated.
+     */
+    private static final int MAX_PALETTE_SIZE = 64;
+
+    /**
+     * Simple name of the generated class.
+     */
+    private static final String CLASS_NAME = "CompiledNeighbourhoodKernel";
+
+    private NeighbourhoodKernelCompiler() {}
+
+    /**
+     * Generates and loads a kernel for the given model.
+     * 
+     * @param model
+     * @param requiredNeighbours Number of neighbours that must be valid for a
+     *        pixel to match.
+     * @return The kernel, or null if no kernel could be created.
+     */
+    static NeighbourhoodKernel compile(NeighbourhoodModel model,
+            int requiredNeighbours) {
+
+        if (!model.hasAdjacencyMatrices()
+                || model.getUnknownPaletteIndex() >= MAX_PALETTE_SIZE) {
+            // Palette is too large
+            return null;
+        }
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            System.out.println("Kernel compiler is unavailable");
+            return null;
+        }
+
+        try {
+            byte[] bytes = compileSource(compiler,
+                    generateSource(model, requiredNeighbours));
+            if (bytes == null) {
+                System.out.println("Unable to compile kernel");
+                return null;
+            }
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClass(bytes, true);
+            NeighbourhoodKernel kernel = (NeighbourhoodKernel) lookup
+                    .findConstructor(lookup.lookupClass(),
+                            MethodType.methodType(void.class))
+                    .invoke();
+            System.out.println("Using compiled kernel");
+            return kernel;
+        } catch (Throwable ex) {
+            System.out.println("Unable to load kernel: " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the source code of a kernel for the given model.
+     * 
+     * @param model
+     * @param requiredNeighbours
+     * @return
+     */
+    static String generateSource(NeighbourhoodModel model,
+            int requiredNeighbours) {
+
+        int radius = model.getRadius();
+        int numColours = model.getNumColours();
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("package main;\n\n");
+        sb.append("final class ").append(CLASS_NAME)
+                .append(" implements NeighbourhoodKernel {\n\n");
+
+        // Main loop
+        sb.append("    @Override\n");
+        sb.append("    public void classify(int[] p, int w, int h,\n");
+        sb.append("            BitMask candidates, BitMask result) {\n");
+        sb.append("        for (int y = ").append(radius)
+                .append("; y < h - ").append(radius).append("; y++) {\n");
+        sb.append("            for (int x = ").append(radius)
+                .append("; x < w - ").append(radius).append("; x++) {\n");
+        sb.append("                if (candidates != null"
+                + " && candidates.getWord(x, y) == 0) {\n");
+        sb.append("                    x |= 63;\n");
+        sb.append("                    continue;\n");
+        sb.append("                }\n");
+        sb.append("                if (candidates != null"
+                + " && !candidates.get(x, y)) {\n");
+        sb.append("                    continue;\n");
+        sb.append("                }\n");
+        sb.append("                int i = y * w + x;\n");
+        sb.append("                int n;\n");
+        sb.append("                switch (p[i]) {\n");
+        for (int index = 0; index < numColours; index++) {
+            sb.append("                case ").append(index)
+                    .append(": n = count").append(index)
+                    .append("(p, i, w); break;\n");
+        }
+        sb.append("                default: continue;\n");
+        sb.append("                }\n");
+        sb.append("                if (n >= ").append(requiredNeighbours)
+                .append(") {\n");
+        sb.append("                    result.set(x, y);\n");
+        sb.append("                }\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+
+        // One counting method per colour, so that no single method grows too
+        // large for the JIT compiler
+        for (int index = 0; index < numColours; index++) {
+            sb.append("\n    private static int count").append(index)
+                    .append("(int[] p, int i, int w) {\n");
+            sb.append("        return 0");
+            for (int d = 0; d < model.getNumDirections(); d++) {
+                long row = model.getAdjacencyWord(index, d, 0);
+                if (row == 0) {
+                    // No neighbours are valid in this direction
+                    continue;
+                }
+                sb.append("\n                + ((int) (0x")
+                        .append(Long.toHexString(row))
+                        .append("L >>> p[")
+                        .append(neighbourIndex(model.getDX(d),
+                                model.getDY(d)))
+                        .append("]) & 1)");
+            }
+            sb.append(";\n");
+            sb.append("    }\n");
+        }
+
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Writes an expression for the array index of the neighbour at the given
+     * offset from pixel i, in an image of width w.
+     * 
+     * @param dx
+     * @param dy
+     * @return
+     */
+    private static String neighbourIndex(int dx, int dy) {
+        StringBuilder sb = new StringBuilder("i");
+        if (dy != 0) {
+            sb.append(dy < 0 ? " - " : " + ");
+            if (Math.abs(dy) != 1) {
+                sb.append(Math.abs(dy)).append(" * ");
+            }
+            sb.append('w');
+        }
+        if (dx != 0) {
+            sb.append(dx < 0 ? " - " : " + ").append(Math.abs(dx));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Compiles the given source code in memory.
+     * 
+     * @param compiler
+     * @param source
+     * @return The class file, or null if compilation failed.
+     * @throws IOException
+     */
+    private static byte[] compileSource(JavaCompiler compiler,
+            String source) throws IOException {
+
+        JavaFileObject sourceFile = new SimpleJavaFileObject(
+                URI.create("string:///main/" + CLASS_NAME + ".java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreErrors) {
+                return source;
+            }
+        };
+
+        ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+        try (JavaFileManager fileManager = new ForwardingJavaFileManager<>(
+                compiler.getStandardFileManager(null, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location,
+                    String className, JavaFileObject.Kind kind,
+                    FileObject sibling) {
+                return new SimpleJavaFileObject(
+                        URI.create("bytes:///" + className + kind.extension),
+                        kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return classFile;
+                    }
+                };
+            }
+        }) {
+
+            // Compile against the classes of the running application
+            StringWriter messages = new StringWriter();
+            boolean success = compiler.getTask(
+                    messages,
+                    fileManager,
+                    null,
+                    Arrays.asList(
+                            "-classpath", System.getProperty("java.class.path"),
+                            "-proc:none"),
+                    null,
+                    Collections.singletonList(sourceFile)).call();
+
+            return success ? classFile.toByteArray() : null;
+        }
+    }
+
+}
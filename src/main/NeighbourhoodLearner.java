@@ -0,0 +1,396 @@
+package main;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Accumulates the neighbour sets of a background texture, from which a
+ * NeighbourhoodModel can be built.
+ *
+ * Textures are learned in bands of rows, in parallel, with each band producing
+ * a partial result. The partial results are then merged in order, so that the
+ * final model is identical to one learned by a single thread.
+ *
+ * Any number of sample textures can be added to a learner, and a learner can
+ * be created from an existing model, so that new samples can be added without
+ * re-learning the old ones.
+ *
+ * The learner counts how many times each neighbour is seen, so that rare
+ * neighbours (typically noise, such as compression artifacts) can be left out
+ * of the model. Counts are not saved in the model, so a learner can only be
+ * created from a model that has a minimum count of 1.
+ */
+public class NeighbourhoodLearner {
+
+    /**
+     * Minimum number of pixels that a single task should learn.
+     * 
+     * Smaller bands are not worth the overhead of a separate task.
+     */
+    private static final int MIN_PIXELS_PER_TASK = 1 << 18;
+
+    /**
+     * Task that learns a band of rows, splitting it in two if it is large.
+     */
+    private static class LearnTask extends RecursiveTask<NeighbourhoodLearner> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int radius;
+        private final int minCount;
+        private final int[] pixels;
+        private final int width;
+        private final int yStart;
+        private final int yEnd;
+
+        public LearnTask(int radius, int minCount, int[] pixels, int width,
+                int yStart, int yEnd) {
+            this.radius = radius;
+            this.minCount = minCount;
+            this.pixels = pixels;
+            this.width = width;
+            this.yStart = yStart;
+            this.yEnd = yEnd;
+        }
+
+        @Override
+        protected NeighbourhoodLearner compute() {
+
+            int rows = yEnd - yStart;
+
+            if (rows < 2 || (long) rows * width <= MIN_PIXELS_PER_TASK) {
+                NeighbourhoodLearner learner =
+                        new NeighbourhoodLearner(radius, minCount);
+                learner.learn(pixels, width, yStart, yEnd);
+                return learner;
+            }
+
+            int yMid = yStart + rows / 2;
+            LearnTask top = new LearnTask(
+                    radius, minCount, pixels, width, yStart, yMid);
+            LearnTask bottom = new LearnTask(
+                    radius, minCount, pixels, width, yMid, yEnd);
+            top.fork();
+            NeighbourhoodLearner bottomLearner = bottom.compute();
+            NeighbourhoodLearner topLearner = top.join();
+
+            // Merge in row order, so colours keep their serial indices
+            topLearner.merge(bottomLearner);
+            return topLearner;
+        }
+    }
+
+    /**
+     * Neighbourhood radius.
+     */
+    private final int radius;
+
+    /**
+     * Number of times a neighbour must be seen to be included in the model.
+     */
+    private final int minCount;
+
+    /**
+     * Horizontal offset of each direction.
+     */
+    private final int[] dx;
+
+    /**
+     * Vertical offset of each direction.
+     */
+    private final int[] dy;
+
+    /**
+     * Map of colour -> index.
+     */
+    private IntIntHashMap colourIndices = new IntIntHashMap();
+
+    /**
+     * Colour at each index.
+     */
+    private int[] colours = new int[16];
+
+    /**
+     * Number of times each neighbour has been seen in each direction, for
+     * the colour at each index.
+     */
+    private List<IntIntHashMap[]> occurrences = new ArrayList<>();
+
+    /**
+     * Creates an empty NeighbourhoodLearner for the Moore neighbourhood.
+     */
+    public NeighbourhoodLearner() {
+        this(NeighbourhoodModel.DEFAULT_RADIUS);
+    }
+
+    /**
+     * Creates an empty NeighbourhoodLearner.
+     * 
+     * @param radius Neighbourhood radius.
+     */
+    public NeighbourhoodLearner(int radius) {
+        this(radius, NeighbourhoodModel.DEFAULT_MIN_COUNT);
+    }
+
+    /**
+     * Creates an empty NeighbourhoodLearner that leaves out rare neighbours.
+     * 
+     * @param radius Neighbourhood radius.
+     * @param minCount Number of times a neighbour must be seen in a given
+     *        direction from a colour to be included in the model.
+     */
+    public NeighbourhoodLearner(int radius, int minCount) {
+
+        if (minCount < 1) {
+            throw new IllegalArgumentException(
+                    "Minimum count must be at least 1: " + minCount);
+        }
+
+        this.radius = radius;
+        this.minCount = minCount;
+        this.dx = NeighbourhoodModel.directionsX(radius);
+        this.dy = NeighbourhoodModel.directionsY(radius);
+    }
+
+    /**
+     * Creates a NeighbourhoodLearner that already knows everything in the
+     * given model.
+     * 
+     * @param model
+     * @throws IllegalArgumentException if the model has a minimum count above
+     *         1, since the counts of the neighbours it left out are not known.
+     */
+    public NeighbourhoodLearner(NeighbourhoodModel model) {
+        this(model.getRadius(), model.getMinCount());
+        if (model.getMinCount() > 1) {
+            throw new IllegalArgumentException(
+                    "Cannot add to a model with a minimum count above 1");
+        }
+        model.addTo(this);
+    }
+
+    /**
+     * Learns the given texture using the common ForkJoinPool.
+     * 
+     * @param pixels
+     * @param width
+     * @param height
+     * @param radius Neighbourhood radius.
+     * @param minCount
+     * @return
+     */
+    public static NeighbourhoodLearner learnInParallel(int[] pixels,
+            int width, int height, int radius, int minCount) {
+
+        NeighbourhoodLearner learner =
+                new NeighbourhoodLearner(radius, minCount);
+
+        if (width <= 2 * radius || height <= 2 * radius) {
+            // No pixels have a complete neighbourhood
+            return learner;
+        }
+
+        // Ignore edge pixels
+        return ForkJoinPool.commonPool().invoke(
+                new LearnTask(radius, minCount, pixels, width,
+                        radius, height - radius));
+    }
+
+    /**
+     * Learns the given sample texture, in addition to anything learned
+     * previously.
+     * 
+     * @param image
+     */
+    public void addSample(BufferedImage image) {
+        int[] pixels = ImageUtils.getPixels(image);
+        merge(learnInParallel(pixels, image.getWidth(), image.getHeight(),
+                radius, minCount));
+    }
+
+    /**
+     * Records that the given neighbour is valid in the given direction from
+     * the given colour, regardless of how many times it is seen.
+     * 
+     * @param colour
+     * @param direction
+     * @param neighbour
+     */
+    public void add(int colour, int direction, int neighbour) {
+        occurrences.get(indexOf(colour))[direction]
+                .add(neighbour, minCount);
+    }
+
+    /**
+     * Learns a band of rows of the given texture.
+     * 
+     * @param pixels
+     * @param width
+     * @param yStart First row to learn (must be at least radius rows from the
+     *        top).
+     * @param yEnd Row after the last row to learn (must be at least radius
+     *        rows from the bottom).
+     */
+    public void learn(int[] pixels, int width, int yStart, int yEnd) {
+
+        // Offset of each neighbour within the pixel array
+        int[] offsets = new int[dx.length];
+        for (int d = 0; d < offsets.length; d++) {
+            offsets[d] = dy[d] * width + dx[d];
+        }
+
+        // Ignore edge pixels
+        for (int y = yStart; y < yEnd; y++) {
+            for (int x = radius; x < width - radius; x++) {
+
+                int i = y * width + x;
+
+                // Count each neighbouring colour for this pixel's colour
+                IntIntHashMap[] counts = occurrences.get(indexOf(pixels[i]));
+                for (int d = 0; d < offsets.length; d++) {
+                    counts[d].add(pixels[i + offsets[d]], 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds everything learned by another learner to this one.
+     * 
+     * Any colours that are new to this learner are indexed after the existing
+     * colours, in the order the other learner first encountered them.
+     * 
+     * @param other
+     */
+    public void merge(NeighbourhoodLearner other) {
+        if (other.radius != radius) {
+            throw new IllegalArgumentException(
+                    "Cannot merge learners with different radii");
+        }
+        for (int otherIndex = 0; otherIndex < other.getNumColours();
+                otherIndex++) {
+            IntIntHashMap[] counts = occurrences.get(
+                    indexOf(other.colours[otherIndex]));
+            IntIntHashMap[] otherCounts = other.occurrences.get(otherIndex);
+            for (int d = 0; d < dx.length; d++) {
+                counts[d].addAll(otherCounts[d]);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of distinct colours learned so far.
+     * 
+     * @return
+     */
+    public int getNumColours() {
+        return colourIndices.size();
+    }
+
+    /**
+     * Builds a NeighbourhoodModel from everything learned so far.
+     * 
+     * Only neighbours that have been seen at least minCount times are
+     * included.
+     * 
+     * Many colours in a texture have exactly the same neighbours in a given
+     * direction, so each distinct set of neighbours is stored only once, and
+     * shared by every (colour, direction) pair that has it.
+     * 
+     * @return
+     */
+    public NeighbourhoodModel build() {
+
+        int numDirections = dx.length;
+        int numSlices = getNumColours() * numDirections;
+
+        int[] neighbourStarts = new int[numSlices];
+        int[] neighbourCounts = new int[numSlices];
+        int[] neighbours = new int[16];
+        int total = 0;
+
+        // Map of slice hash -> first slice with that hash
+        IntIntHashMap slicesByHash = new IntIntHashMap();
+
+        for (int slice = 0; slice < numSlices; slice++) {
+
+            IntIntHashMap counts = occurrences.get(slice / numDirections)
+                    [slice % numDirections];
+
+            // Write the set to the end of the array, provisionally
+            if (total + counts.size() > neighbours.length) {
+                neighbours = Arrays.copyOf(neighbours,
+                        Math.max(neighbours.length * 2, total + counts.size()));
+            }
+            int count = counts.copySortedKeysTo(neighbours, total, minCount);
+            neighbourCounts[slice] = count;
+
+            int hash = 31 * count;
+            for (int n = total; n < total + count; n++) {
+                hash = 31 * hash + neighbours[n];
+            }
+
+            int other = slicesByHash.get(hash);
+            if (other != IntIntHashMap.NOT_FOUND
+                    && neighbourCounts[other] == count
+                    && Arrays.equals(
+                            neighbours, total, total + count,
+                            neighbours, neighbourStarts[other],
+                            neighbourStarts[other] + count)) {
+                // Share the existing copy of this set
+                neighbourStarts[slice] = neighbourStarts[other];
+                continue;
+            }
+
+            // Keep the new copy; on a hash collision, only the first slice
+            // with a given hash can be shared
+            neighbourStarts[slice] = total;
+            total += count;
+            if (other == IntIntHashMap.NOT_FOUND) {
+                slicesByHash.put(hash, slice);
+            }
+        }
+
+        return new NeighbourhoodModel(
+                radius,
+                minCount,
+                Arrays.copyOf(colours, getNumColours()),
+                neighbourStarts,
+                neighbourCounts,
+                Arrays.copyOf(neighbours, total));
+    }
+
+    /**
+     * Gets the index of the given colour, adding it if this is the first time
+     * it has been seen.
+     * 
+     * @param colour
+     * @return
+     */
+    private int indexOf(int colour) {
+
+        int index = colourIndices.get(colour);
+
+        if (index == IntIntHashMap.NOT_FOUND) {
+            // This is the first pixel of this colour we have seen
+            index = colourIndices.size();
+            colourIndices.put(colour, index);
+            if (index == colours.length) {
+                colours = Arrays.copyOf(colours, index * 2);
+            }
+            colours[index] = colour;
+            IntIntHashMap[] counts = new IntIntHashMap[dx.length];
+            for (int d = 0; d < counts.length; d++) {
+                counts[d] = new IntIntHashMap(1);
+            }
+            occurrences.add(counts);
+        }
+
+        return index;
+    }
+
+}
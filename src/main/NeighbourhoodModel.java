@@ -0,0 +1,889 @@
+package main;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Learned composition of a background texture: for each pixel colour, the set
+ * of colours that have been seen at each offset within a square neighbourhood
+ * around it.
+ *
+ * The neighbourhood extends a given radius from the pixel in each direction:
+ * a radius of 1 gives the 8-pixel Moore neighbourhood, and a radius of 2 gives
+ * a 5x5 neighbourhood of 24 pixels. Each offset is called a "direction".
+ *
+ * All data is held in primitive arrays, so queries never box or allocate.
+ * Each colour is assigned a dense index (in the order the colours were first
+ * encountered), and the valid neighbours for each (colour, direction) pair are
+ * stored as a sorted slice of a single shared array. Identical slices are
+ * only stored once, so pairs with the same neighbours share a slice.
+ *
+ * If the texture has few enough colours, each colour is also assigned a
+ * palette index, and an adjacency bit-matrix is built for each direction, so
+ * that checking a neighbour becomes a single bit test. The matrices share a
+ * fixed memory budget, so larger neighbourhoods get them for smaller palettes.
+ *
+ * A bitmap covering the whole 24-bit RGB colour space records which colours
+ * are present in the texture, so that most foreground pixels can be rejected
+ * with a single bit test, without any hashing.
+ *
+ * Models can be learned from any number of sample textures, and extended with
+ * further samples later. They can also be saved to a compact binary file, and
+ * loaded again without having to re-learn the samples.
+ */
+public class NeighbourhoodModel {
+
+    /**
+     * Neighbourhood radius of the 8-pixel Moore neighbourhood.
+     */
+    public static final int DEFAULT_RADIUS = 1;
+
+    /**
+     * Minimum count that keeps every neighbour that has been seen.
+     */
+    public static final int DEFAULT_MIN_COUNT = 1;
+
+    /**
+     * Largest supported neighbourhood radius.
+     */
+    public static final int MAX_RADIUS = 2;
+
+    /**
+     * Maximum number of bits that the adjacency matrices may occupy (4 MiB).
+     * 
+     * The matrices require (palette size ^ 2) bits per direction, so for a
+     * radius of 1 they are built for palettes of up to 2048 colours, and for
+     * a radius of 2, up to 1182 colours.
+     */
+    private static final long MAX_MATRIX_BITS = 1L << 25;
+
+    /**
+     * Value that identifies a model file ("SXNM").
+     */
+    private static final int FILE_MAGIC = 0x53584e4d;
+
+    /**
+     * Version of the model file format.
+     * 
+     * This must be incremented whenever the file format or the learning
+     * algorithm changes, so that stale models are not loaded.
+     */
+    private static final int FILE_VERSION = 4;
+
+    /**
+     * Extension used for model files.
+     */
+    private static final String FILE_EXTENSION = ".model";
+
+    /**
+     * Neighbourhood radius.
+     */
+    private final int radius;
+
+    /**
+     * Number of times each neighbour had to be seen to be included.
+     */
+    private final int minCount;
+
+    /**
+     * Horizontal offset of each direction.
+     */
+    private final int[] dx;
+
+    /**
+     * Vertical offset of each direction.
+     */
+    private final int[] dy;
+
+    /**
+     * Colour at each index.
+     */
+    private final int[] colours;
+
+    /**
+     * Map of colour -> palette index.
+     * 
+     * The palette contains every colour in the texture. Colours that have
+     * been learned have the same palette index as their colour index; any
+     * colours that were only ever seen as neighbours (i.e. at the edge of the
+     * texture) come after these.
+     */
+    private final IntIntHashMap paletteIndices;
+
+    /**
+     * Position of the first valid neighbour for each (colour index, direction)
+     * pair within neighbours, indexed by (colour index * number of directions
+     * + direction).
+     */
+    private final int[] neighbourStarts;
+
+    /**
+     * Number of valid neighbours for each (colour index, direction) pair, in
+     * the same order as neighbourStarts.
+     */
+    private final int[] neighbourCounts;
+
+    /**
+     * Valid neighbour colours for all (colour, direction) pairs.
+     */
+    private final int[] neighbours;
+
+    /**
+     * One bit for each 24-bit RGB colour, set if any colour in the palette
+     * has those RGB components (2 MiB).
+     * 
+     * Alpha is ignored, so a set bit only means that the colour *might* be
+     * present.
+     */
+    private final long[] colourPresence = new long[1 << 18];
+
+    /**
+     * Adjacency bit-matrices, or null if the palette is too large.
+     * 
+     * For each (colour index, direction) pair there is a row containing one
+     * bit per palette index; a bit is set if that colour is a valid
+     * neighbour. The rows for all directions of a colour are stored together.
+     * 
+     * Each row has room for at least one bit beyond the end of the palette,
+     * which is never set; this is the index of unknown colours.
+     */
+    private final long[] adjacency;
+
+    /**
+     * Number of 64-bit words in each row of the adjacency matrices.
+     */
+    private final int adjacencyRowWords;
+
+    NeighbourhoodModel(
+            int radius,
+            int minCount,
+            int[] colours,
+            int[] neighbourStarts,
+            int[] neighbourCounts,
+            int[] neighbours) {
+
+        this.radius = radius;
+        this.minCount = minCount;
+        this.dx = directionsX(radius);
+        this.dy = directionsY(radius);
+        this.colours = colours;
+        this.neighbourStarts = neighbourStarts;
+        this.neighbourCounts = neighbourCounts;
+        this.neighbours = neighbours;
+
+        // Assign palette indices, starting with the learned colours
+        paletteIndices = new IntIntHashMap(colours.length);
+        for (int index = 0; index < colours.length; index++) {
+            paletteIndices.put(colours[index], index);
+        }
+        for (int neighbour : neighbours) {
+            if (paletteIndices.get(neighbour) == IntIntHashMap.NOT_FOUND) {
+                paletteIndices.put(neighbour, paletteIndices.size());
+            }
+        }
+
+        for (int colour : colours) {
+            setColourPresent(colour);
+        }
+        for (int neighbour : neighbours) {
+            setColourPresent(neighbour);
+        }
+
+        int numDirections = dx.length;
+        int paletteSize = paletteIndices.size();
+        if ((long) paletteSize * paletteSize * numDirections
+                > MAX_MATRIX_BITS) {
+            adjacency = null;
+            adjacencyRowWords = 0;
+            return;
+        }
+
+        // Build the adjacency matrices from the neighbour sets
+        adjacencyRowWords = (paletteSize >>> 6) + 1;
+        int numSlices = colours.length * numDirections;
+        adjacency = new long[numSlices * adjacencyRowWords];
+        for (int slice = 0; slice < numSlices; slice++) {
+            int row = slice * adjacencyRowWords;
+            int start = neighbourStarts[slice];
+            for (int n = start; n < start + neighbourCounts[slice]; n++) {
+                int neighbourIndex = paletteIndices.get(neighbours[n]);
+                adjacency[row + (neighbourIndex >>> 6)] |= 1L << neighbourIndex;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of directions in a neighbourhood of the given radius.
+     * 
+     * @param radius
+     * @return
+     */
+    public static int numDirections(int radius) {
+        int side = 2 * radius + 1;
+        return side * side - 1;
+    }
+
+    /**
+     * Gets the horizontal offset of each direction in a neighbourhood of the
+     * given radius.
+     * 
+     * Directions are ordered by distance from the centre, then clockwise
+     * starting from north, so that for a radius of 1 the order is: N, NE, E,
+     * SE, S, SW, W, NW.
+     * 
+     * @param radius
+     * @return
+     */
+    static int[] directionsX(int radius) {
+        return directions(radius, true);
+    }
+
+    /**
+     * Gets the vertical offset of each direction in a neighbourhood of the
+     * given radius, in the same order as directionsX.
+     * 
+     * @param radius
+     * @return
+     */
+    static int[] directionsY(int radius) {
+        return directions(radius, false);
+    }
+
+    /**
+     * Walks each ring of the neighbourhood clockwise, starting from north.
+     * 
+     * @param radius
+     * @param horizontal True to get the horizontal offsets, false to get the
+     *        vertical offsets.
+     * @return
+     */
+    private static int[] directions(int radius, boolean horizontal) {
+
+        if (radius < 1 || radius > MAX_RADIUS) {
+            throw new IllegalArgumentException(
+                    "Radius must be between 1 and " + MAX_RADIUS + ": " +
+                    radius);
+        }
+
+        int[] offsets = new int[numDirections(radius)];
+        int d = 0;
+
+        for (int r = 1; r <= radius; r++) {
+
+            // Start at north, and stop just before reaching it again
+            int x = 0;
+            int y = -r;
+            offsets[d++] = horizontal ? x : y;
+            int[][] legs = { { 1, 0, r }, { 0, 1, r }, { -1, 0, -r },
+                    { 0, -1, -r }, { 1, 0, -1 } };
+            for (int[] leg : legs) {
+                while ((leg[0] != 0 ? x : y) != leg[2]) {
+                    x += leg[0];
+                    y += leg[1];
+                    offsets[d++] = horizontal ? x : y;
+                }
+            }
+        }
+
+        return offsets;
+    }
+
+    /**
+     * Learns the composition of the given texture, using the Moore
+     * neighbourhood.
+     * 
+     * @param image
+     * @return
+     */
+    public static NeighbourhoodModel learn(BufferedImage image) {
+        return learn(image, DEFAULT_RADIUS);
+    }
+
+    /**
+     * Learns the composition of the given texture.
+     * 
+     * The texture is split into bands of rows which are learned in parallel,
+     * but the result is the same as if it were learned serially.
+     * 
+     * @param image
+     * @param radius Neighbourhood radius.
+     * @return
+     */
+    public static NeighbourhoodModel learn(BufferedImage image, int radius) {
+        NeighbourhoodLearner learner = new NeighbourhoodLearner(radius);
+        learner.addSample(image);
+        return learner.build();
+    }
+
+    /**
+     * Learns the composition of all of the given textures, using the Moore
+     * neighbourhood.
+     * 
+     * @param images
+     * @return
+     */
+    public static NeighbourhoodModel learn(List<BufferedImage> images) {
+        return learn(images, DEFAULT_RADIUS);
+    }
+
+    /**
+     * Learns the composition of all of the given textures.
+     * 
+     * @param images
+     * @param radius Neighbourhood radius.
+     * @return
+     */
+    public static NeighbourhoodModel learn(List<BufferedImage> images,
+            int radius) {
+        return learn(images, radius, DEFAULT_MIN_COUNT);
+    }
+
+    /**
+     * Learns the composition of all of the given textures, leaving out any
+     * neighbours that are seen fewer than the given number of times.
+     * 
+     * @param images
+     * @param radius Neighbourhood radius.
+     * @param minCount
+     * @return
+     */
+    public static NeighbourhoodModel learn(List<BufferedImage> images,
+            int radius, int minCount) {
+        NeighbourhoodLearner learner =
+                new NeighbourhoodLearner(radius, minCount);
+        for (BufferedImage image : images) {
+            learner.addSample(image);
+        }
+        return learner.build();
+    }
+
+    /**
+     * Creates a new model that knows everything in this model, plus the
+     * composition of the given texture.
+     * 
+     * The time this takes depends on the size of the new texture and of this
+     * model, but not on the size of the textures previously learned.
+     * 
+     * This is only possible if the model has a minimum count of 1, since
+     * counts are not kept in the model; otherwise, all of the textures must
+     * be learned again.
+     * 
+     * @param image
+     * @return
+     * @throws UnsupportedOperationException if the minimum count is above 1.
+     */
+    public NeighbourhoodModel withSample(BufferedImage image) {
+        if (minCount > 1) {
+            throw new UnsupportedOperationException(
+                    "Cannot extend a model with a minimum count above 1");
+        }
+        NeighbourhoodLearner learner = new NeighbourhoodLearner(this);
+        learner.addSample(image);
+        return learner.build();
+    }
+
+    /**
+     * Loads the model for the given texture from the given directory, or
+     * learns it (and saves it to that directory) if it has not been saved
+     * before.
+     * 
+     * @param image
+     * @param modelDir
+     * @return
+     */
+    public static NeighbourhoodModel loadOrLearn(BufferedImage image,
+            File modelDir) {
+        return loadOrLearn(Collections.singletonList(image), modelDir);
+    }
+
+    /**
+     * Loads or learns the model for the given textures, using the Moore
+     * neighbourhood.
+     * 
+     * @param images
+     * @param modelDir
+     * @return
+     */
+    public static NeighbourhoodModel loadOrLearn(List<BufferedImage> images,
+            File modelDir) {
+        return loadOrLearn(images, modelDir, DEFAULT_RADIUS);
+    }
+
+    /**
+     * Loads or learns the model for the given textures, keeping every
+     * neighbour that has been seen.
+     * 
+     * @param images
+     * @param modelDir
+     * @param radius Neighbourhood radius.
+     * @return
+     */
+    public static NeighbourhoodModel loadOrLearn(List<BufferedImage> images,
+            File modelDir, int radius) {
+        return loadOrLearn(images, modelDir, radius, DEFAULT_MIN_COUNT);
+    }
+
+    /**
+     * Loads the model for the given textures from the given directory, or
+     * learns it (and saves it to that directory) if it has not been saved
+     * before.
+     * 
+     * Models are keyed by a hash of the textures, the radius, the minimum
+     * count and the model format, so a single directory can be shared between
+     * different textures, and between concurrent processes.
+     * 
+     * If a model has been saved for the first few textures only, then that is
+     * loaded and extended with the remaining textures, so adding a new sample
+     * does not require the others to be learned again. Counts are not saved,
+     * so this is only done with a minimum count of 1; otherwise, neighbours
+     * left out of the saved model would start counting again from 0, and the
+     * result would depend on which models had been saved.
+     * 
+     * @param images
+     * @param modelDir
+     * @param radius Neighbourhood radius.
+     * @param minCount Number of times a neighbour must be seen to be
+     *        included.
+     * @return
+     */
+    public static NeighbourhoodModel loadOrLearn(List<BufferedImage> images,
+            File modelDir, int radius, int minCount) {
+
+        // Generate a key for each prefix of the list of textures
+        String[] keys = new String[images.size()];
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = getModelKey(i == 0 ? null : keys[i - 1],
+                        images.get(i), radius, minCount);
+            }
+        } catch (NoSuchAlgorithmException ex) {
+            System.out.println("Error generating hash for texture");
+            return learn(images, radius, minCount);
+        }
+
+        // Find the model for the longest prefix that has been saved (or just
+        // the full list, if it cannot be extended)
+        int shortestPrefix = minCount > 1 ? keys.length - 1 : 0;
+        NeighbourhoodModel model = null;
+        int numLearned = 0;
+        for (int i = keys.length - 1; i >= shortestPrefix && model == null;
+                i--) {
+            File file = new File(modelDir, keys[i] + FILE_EXTENSION);
+            if (file.exists()) {
+                try {
+                    model = load(file);
+                    if (model.getRadius() != radius
+                            || model.getMinCount() != minCount) {
+                        throw new IOException("Wrong parameters: " + file);
+                    }
+                    numLearned = i + 1;
+                    System.out.println("Loaded model: " + file);
+                } catch (IOException ex) {
+                    System.out.println("Unable to load model: " + file);
+                    model = null;
+                }
+            }
+        }
+
+        if (numLearned == images.size()) {
+            return model;
+        }
+
+        // Learn any remaining textures
+        NeighbourhoodLearner learner = model == null
+                ? new NeighbourhoodLearner(radius, minCount)
+                : new NeighbourhoodLearner(model);
+        for (BufferedImage image : images.subList(numLearned, images.size())) {
+            learner.addSample(image);
+        }
+        model = learner.build();
+
+        File file = new File(modelDir, keys[keys.length - 1] + FILE_EXTENSION);
+        try {
+            modelDir.mkdirs();
+            model.save(file);
+            System.out.println("Saved model: " + file);
+        } catch (IOException ex) {
+            System.out.println("Unable to save model");
+            ex.printStackTrace();
+        }
+
+        return model;
+    }
+
+    /**
+     * Generates the key under which a model is saved.
+     * 
+     * @param previousKey Key of the model for all previous textures, or null
+     *        if this is the first texture.
+     * @param image Last texture learned by the model.
+     * @param radius Neighbourhood radius.
+     * @param minCount
+     * @return
+     * @throws NoSuchAlgorithmException
+     */
+    private static String getModelKey(String previousKey, BufferedImage image,
+            int radius, int minCount) throws NoSuchAlgorithmException {
+
+        String hash = ImageUtils.generatePixelHash(image);
+
+        if (previousKey != null) {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update((previousKey + hash).getBytes(StandardCharsets.UTF_8));
+            hash = ImageUtils.bytesToHex(md.digest());
+        }
+
+        return hash + "-r" + radius + "-m" + minCount + "-v" + FILE_VERSION;
+    }
+
+    /**
+     * Saves this model to the given file.
+     * 
+     * The file is written in full before being moved into place, so other
+     * processes will never see a partially-written model.
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+
+        int numInts = 6 + colours.length + neighbourStarts.length
+                + neighbourCounts.length + neighbours.length;
+        ByteBuffer buffer = ByteBuffer.allocate(numInts * 4);
+        IntBuffer ints = buffer.asIntBuffer();
+        ints.put(FILE_MAGIC);
+        ints.put(FILE_VERSION);
+        ints.put(radius);
+        ints.put(minCount);
+        ints.put(colours.length);
+        ints.put(neighbours.length);
+        ints.put(colours);
+        ints.put(neighbourStarts);
+        ints.put(neighbourCounts);
+        ints.put(neighbours);
+
+        File tempFile = File.createTempFile(
+                "model", ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            Files.write(tempFile.toPath(), buffer.array());
+            Files.move(tempFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    /**
+     * Loads a model from the given file.
+     * 
+     * The file is read into memory in one go, and the derived tables (the
+     * palette, colour presence bitmap and adjacency matrices) are rebuilt, so
+     * each process that loads a model holds its own copy.
+     * 
+     * @param file
+     * @return
+     * @throws IOException if the file cannot be read, or is not a valid model
+     *         file.
+     */
+    public static NeighbourhoodModel load(File file) throws IOException {
+
+        IntBuffer ints = ByteBuffer.wrap(Files.readAllBytes(file.toPath()))
+                .asIntBuffer();
+
+        if (ints.remaining() < 6
+                || ints.get() != FILE_MAGIC
+                || ints.get() != FILE_VERSION) {
+            throw new IOException("Not a valid model file: " + file);
+        }
+
+        int radius = ints.get();
+        int minCount = ints.get();
+        if (radius < 1 || radius > MAX_RADIUS || minCount < 1) {
+            throw new IOException("Model file is corrupt: " + file);
+        }
+
+        int numDirections = numDirections(radius);
+        int numColours = ints.get();
+        int numNeighbours = ints.get();
+        long expectedInts = (long) numColours * (2 * numDirections + 1)
+                + numNeighbours;
+        if (numColours < 0
+                || numNeighbours < 0
+                || ints.remaining() != expectedInts) {
+            throw new IOException("Model file is corrupt: " + file);
+        }
+
+        int[] colours = new int[numColours];
+        int numSlices = numColours * numDirections;
+        int[] neighbourStarts = new int[numSlices];
+        int[] neighbourCounts = new int[numSlices];
+        int[] neighbours = new int[numNeighbours];
+        ints.get(colours);
+        ints.get(neighbourStarts);
+        ints.get(neighbourCounts);
+        ints.get(neighbours);
+
+        // Make sure the slices are all in bounds
+        for (int slice = 0; slice < numSlices; slice++) {
+            int start = neighbourStarts[slice];
+            int count = neighbourCounts[slice];
+            if (start < 0 || count < 0
+                    || (long) start + count > numNeighbours) {
+                throw new IOException("Model file is corrupt: " + file);
+            }
+        }
+
+        return new NeighbourhoodModel(radius, minCount, colours,
+                neighbourStarts, neighbourCounts, neighbours);
+    }
+
+    /**
+     * Adds everything in this model to the given learner.
+     * 
+     * @param learner
+     */
+    void addTo(NeighbourhoodLearner learner) {
+        for (int index = 0; index < colours.length; index++) {
+            for (int d = 0; d < dx.length; d++) {
+                int slice = index * dx.length + d;
+                int start = neighbourStarts[slice];
+                for (int n = start; n < start + neighbourCounts[slice]; n++) {
+                    learner.add(colours[index], d, neighbours[n]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the neighbourhood radius.
+     * 
+     * @return
+     */
+    public int getRadius() {
+        return radius;
+    }
+
+    /**
+     * Gets the number of times each neighbour had to be seen to be included
+     * in the model.
+     * 
+     * @return
+     */
+    public int getMinCount() {
+        return minCount;
+    }
+
+    /**
+     * Gets the number of directions in the neighbourhood.
+     * 
+     * @return
+     */
+    public int getNumDirections() {
+        return dx.length;
+    }
+
+    /**
+     * Gets the horizontal offset of the given direction.
+     * 
+     * @param direction
+     * @return
+     */
+    public int getDX(int direction) {
+        return dx[direction];
+    }
+
+    /**
+     * Gets the vertical offset of the given direction.
+     * 
+     * @param direction
+     * @return
+     */
+    public int getDY(int direction) {
+        return dy[direction];
+    }
+
+    /**
+     * Gets the number of distinct colours in the texture.
+     * 
+     * @return
+     */
+    public int getNumColours() {
+        return colours.length;
+    }
+
+    /**
+     * Records that the given colour is present in the texture.
+     * 
+     * @param colour
+     */
+    private void setColourPresent(int colour) {
+        int rgb = colour & 0xffffff;
+        colourPresence[rgb >>> 6] |= 1L << rgb;
+    }
+
+    /**
+     * Determines whether the given colour might be present in the texture.
+     * 
+     * This is much cheaper than looking up the colour's index, so it is
+     * worth calling first if the colour is likely to be absent.
+     * 
+     * @param colour
+     * @return False if the colour is definitely not present.
+     */
+    public boolean mightContainColour(int colour) {
+        int rgb = colour & 0xffffff;
+        return (colourPresence[rgb >>> 6] & (1L << rgb)) != 0;
+    }
+
+    /**
+     * Gets the index of the given colour.
+     * 
+     * @param colour
+     * @return The index, or IntIntHashMap.NOT_FOUND if no pixels of this
+     *         colour have been learned.
+     */
+    public int indexOf(int colour) {
+        int index = paletteIndices.get(colour);
+        return index < colours.length ? index : IntIntHashMap.NOT_FOUND;
+    }
+
+    /**
+     * Gets the palette index of the given colour.
+     * 
+     * Unlike colour indices, this includes colours that have only been seen
+     * as neighbours.
+     * 
+     * @param colour
+     * @return The palette index, or IntIntHashMap.NOT_FOUND if the colour is
+     *         not present in the texture.
+     */
+    public int paletteIndexOf(int colour) {
+        return paletteIndices.get(colour);
+    }
+
+    /**
+     * Gets the palette index that represents colours not present in the
+     * texture.
+     * 
+     * This is never a valid neighbour, so callers can substitute it for
+     * unknown colours instead of testing for them.
+     * 
+     * @return
+     */
+    public int getUnknownPaletteIndex() {
+        return paletteIndices.size();
+    }
+
+    /**
+     * Determines whether adjacency matrices are available, and therefore
+     * whether isValidNeighbourIndex can be used.
+     * 
+     * @return
+     */
+    public boolean hasAdjacencyMatrices() {
+        return adjacency != null;
+    }
+
+    /**
+     * Determines whether the given colour has been seen in the given
+     * direction from a pixel of the colour with the given index.
+     * 
+     * @param index
+     * @param direction
+     * @param neighbour
+     * @return
+     */
+    public boolean isValidNeighbour(int index, int direction, int neighbour) {
+
+        if (adjacency != null) {
+            int neighbourIndex = paletteIndices.get(neighbour);
+            return neighbourIndex != IntIntHashMap.NOT_FOUND
+                    && isValidNeighbourIndex(index, direction, neighbourIndex);
+        }
+
+        int slice = index * dx.length + direction;
+        int start = neighbourStarts[slice];
+        int end = start + neighbourCounts[slice];
+
+        // Binary search of the (sorted) slice
+        int low = start;
+        int high = end - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = neighbours[mid];
+            if (value < neighbour) {
+                low = mid + 1;
+            } else if (value > neighbour) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determines whether the colour with the given palette index has been
+     * seen in the given direction from a pixel of the colour with the given
+     * index.
+     * 
+     * This may only be called if hasAdjacencyMatrices returns true.
+     * 
+     * @param index
+     * @param direction
+     * @param neighbourIndex
+     * @return
+     */
+    public boolean isValidNeighbourIndex(int index, int direction,
+            int neighbourIndex) {
+        return neighbourBit(index, direction, neighbourIndex) != 0;
+    }
+
+    /**
+     * Gets one 64-bit word of the adjacency matrix row for the given colour
+     * index and direction.
+     * 
+     * This may only be called if hasAdjacencyMatrices returns true.
+     * 
+     * @param index
+     * @param direction
+     * @param word
+     * @return
+     */
+    long getAdjacencyWord(int index, int direction, int word) {
+        return adjacency[(index * dx.length + direction) * adjacencyRowWords
+                + word];
+    }
+
+    /**
+     * Gets the adjacency bit for the given neighbour, as an int.
+     * 
+     * This allows valid neighbours to be counted by addition, without a
+     * branch per neighbour.
+     * 
+     * This may only be called if hasAdjacencyMatrices returns true.
+     * 
+     * @param index
+     * @param direction
+     * @param neighbourIndex Palette index of the neighbour, or the unknown
+     *        palette index.
+     * @return 1 if the neighbour is valid, otherwise 0.
+     */
+    public int neighbourBit(int index, int direction, int neighbourIndex) {
+        int row = (index * dx.length + direction) * adjacencyRowWords;
+        return (int) (adjacency[row + (neighbourIndex >>> 6)]
+                >>> neighbourIndex) & 1;
+    }
+
+}
@@ -1,10 +1,7 @@
 package main;
 
 import java.awt.image.BufferedImage;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.List;
 
 /**
  * PixelPatternMatcher that "learns" the composition of a background texture so
@@ -14,35 +11,64 @@ import java.util.Set;
  * It can then make a decision as to whether the pixel belongs to the
  * background, using a configurable strictness setting.
  * 
+ * Multiple background samples can be learned, and further samples can be
+ * added at any time without re-learning the previous ones.
+ * 
+ * The model may use a neighbourhood larger than 3x3 (see NeighbourhoodModel),
+ * in which case the strictness is scaled so that it is still out of 8; for
+ * example, a strictness of 6 with a 5x5 neighbourhood requires 18 of the 24
+ * neighbours to be valid.
+ * 
+ * Instances are immutable (apart from the thread-safe decision cache), so
+ * one matcher can be shared by any number of threads.
+ * 
  * @author Dan Bryce
  */
 public class NeighbourhoodPixelPatternMatcher implements PixelPatternMatcher {
 
     /**
-     * Class that specifies a set of acceptable pixel colours for each
-     * neighbour in a Moore neighbourhood.
+     * Number of neighbouring pixels that must match the background texture
+     * before a pixel will be matched.
      */
-    private static class ValidNeighbours {
-        public Set<Integer> north     = new HashSet<>();
-        public Set<Integer> northEast = new HashSet<>();
-        public Set<Integer> east      = new HashSet<>();
-        public Set<Integer> southEast = new HashSet<>();
-        public Set<Integer> south     = new HashSet<>();
-        public Set<Integer> southWest = new HashSet<>();
-        public Set<Integer> west      = new HashSet<>();
-        public Set<Integer> northWest = new HashSet<>();
-    }
+    private final int strictness;
 
     /**
-     * Number of neighbouring pixels that must match the background texture
-     * before a pixel will be matched.
+     * Number of neighbours that must be valid, after scaling the strictness
+     * to the size of the model's neighbourhood.
+     */
+    private final int requiredNeighbours;
+
+    /**
+     * Learned composition of the background texture.
+     */
+    private final NeighbourhoodModel model;
+
+    /**
+     * Neighbourhood radius of the model.
+     */
+    private final int radius;
+
+    /**
+     * Cache of previous decisions, keyed by window fingerprint; null if
+     * disabled.
+     * 
+     * The fingerprint only covers a 3x3 window, so the cache is only used if
+     * the model's radius is 1. It is not used alongside a kernel either,
+     * since matchAll never consults it then.
+     */
+    private final DecisionCache cache;
+
+    /**
+     * Requested size of the decision cache, passed on to matchers created by
+     * withSample (which may not be able to compile a kernel).
      */
-    private int strictness;
+    private final int cacheSize;
 
     /**
-     * Map of pixel colour -> valid neighbours for that colour.
+     * Classification loop compiled for this model and strictness; null if
+     * not available.
      */
-    private Map<Integer, ValidNeighbours> entries = new HashMap<>();
+    private final NeighbourhoodKernel kernel;
 
     /**
      * Creates a NeighbourhoodPixelPatternMatcher from the given image.
@@ -51,83 +77,425 @@ public class NeighbourhoodPixelPatternMatcher implements PixelPatternMatcher {
      * @param strictness
      */
     public NeighbourhoodPixelPatternMatcher(BufferedImage image, int strictness) {
+        this(NeighbourhoodModel.learn(image), strictness);
+    }
 
-        // Loop over the image, ignoring edge pixels
-        for (int y = 1; y < image.getHeight() - 1; y++) {
-            for (int x = 1; x < image.getWidth() - 1; x++) {
-
-                int col = image.getRGB(x, y);
-                
-                ValidNeighbours validNeighbours = entries.get(col);
-                
-                if (validNeighbours == null) {
-                    // This is the first pixel of this colour we have seen
-                    validNeighbours = new ValidNeighbours();
-                    entries.put(col, validNeighbours);
-                }
-                
-                // Add each neighbouring colour to this pixel's valid neighbours
-                validNeighbours.north.add(    image.getRGB(x + 0, y - 1));
-                validNeighbours.northEast.add(image.getRGB(x + 1, y - 1));
-                validNeighbours.east.add(     image.getRGB(x + 1, y + 0));
-                validNeighbours.southEast.add(image.getRGB(x + 1, y + 1));
-                validNeighbours.south.add(    image.getRGB(x + 0, y + 1));
-                validNeighbours.southWest.add(image.getRGB(x - 1, y + 1));
-                validNeighbours.west.add(     image.getRGB(x - 1, y + 0));
-                validNeighbours.northWest.add(image.getRGB(x - 1, y - 1));
-            }
-        }
-        
+    /**
+     * Creates a NeighbourhoodPixelPatternMatcher from the given sample images.
+     * 
+     * @param images
+     * @param strictness
+     */
+    public NeighbourhoodPixelPatternMatcher(List<BufferedImage> images,
+            int strictness) {
+        this(NeighbourhoodModel.learn(images), strictness);
+    }
+
+    /**
+     * Creates a NeighbourhoodPixelPatternMatcher from a previously-learned
+     * model.
+     * 
+     * @param model
+     * @param strictness
+     */
+    public NeighbourhoodPixelPatternMatcher(NeighbourhoodModel model,
+            int strictness) {
+        this(model, strictness, 0);
+    }
+
+    /**
+     * Creates a NeighbourhoodPixelPatternMatcher from a previously-learned
+     * model, with a decision cache.
+     * 
+     * Background textures tend to contain the same few 3x3 windows over and
+     * over, so caching the decision for each window means that most pixels
+     * can be classified with a single lookup.
+     * 
+     * @param model
+     * @param strictness
+     * @param cacheSize Maximum number of cached decisions, or 0 to disable
+     *        the cache. Ignored if the model's radius is greater than 1.
+     */
+    public NeighbourhoodPixelPatternMatcher(NeighbourhoodModel model,
+            int strictness, int cacheSize) {
+        this(model, strictness, cacheSize, false);
+    }
+
+    /**
+     * Creates a NeighbourhoodPixelPatternMatcher, optionally compiling a
+     * kernel for the model.
+     * 
+     * @param model
+     * @param strictness
+     * @param cacheSize
+     * @param compileKernel
+     */
+    private NeighbourhoodPixelPatternMatcher(NeighbourhoodModel model,
+            int strictness, int cacheSize, boolean compileKernel) {
+
+        this.model = model;
         this.strictness = strictness;
+        this.radius = model.getRadius();
+
+        // Round up, so that the scaled strictness is never more lenient
+        int numDirections = model.getNumDirections();
+        this.requiredNeighbours = (strictness * numDirections + 7) / 8;
+
+        System.out.println("Pattern contains " + model.getNumColours() +
+                " colours");
+
+        this.kernel = compileKernel
+                ? NeighbourhoodKernelCompiler.compile(model, requiredNeighbours)
+                : null;
+
+        this.cacheSize = cacheSize;
+        this.cache = cacheSize > 0 && radius == 1 && kernel == null
+                ? new DecisionCache(cacheSize)
+                : null;
+    }
+
+    /**
+     * Creates the fastest NeighbourhoodPixelPatternMatcher available.
+     * 
+     * If the model's palette is small enough, and a Java compiler is present
+     * at runtime, a classification loop specialised for the model is
+     * compiled (see NeighbourhoodKernelCompiler). This is used by matchAll
+     * instead of the decision cache, so no cache is created in that case.
+     * 
+     * @param model
+     * @param strictness
+     * @param cacheSize
+     * @return
+     */
+    public static NeighbourhoodPixelPatternMatcher create(
+            NeighbourhoodModel model, int strictness, int cacheSize) {
+        return new NeighbourhoodPixelPatternMatcher(
+                model, strictness, cacheSize, true);
+    }
 
-        System.out.println("Pattern contains " + entries.size() + " colours");
+    /**
+     * Creates a matcher that has also learned an additional background
+     * sample.
+     * 
+     * This matcher is unaffected, so it remains safe to use while the new
+     * matcher is being created.
+     * 
+     * @param image
+     * @return
+     * @throws UnsupportedOperationException if the model has a minimum count
+     *         above 1 (see NeighbourhoodModel.withSample).
+     */
+    public NeighbourhoodPixelPatternMatcher withSample(BufferedImage image) {
+        // Previous decisions may no longer be valid, so start a new cache, and
+        // compile a new kernel if this matcher has one
+        return new NeighbourhoodPixelPatternMatcher(
+                model.withSample(image),
+                strictness,
+                cacheSize,
+                kernel != null);
     }
 
     public boolean matches(BufferedImage image, int x, int y) {
 
+        if (x < radius || y < radius
+                || x >= image.getWidth() - radius
+                || y >= image.getHeight() - radius) {
+            // The pixel does not have a complete neighbourhood
+            return false;
+        }
+
         int col = image.getRGB(x, y);
-        
-        ValidNeighbours validNeighbours = entries.get(col);
-        if (validNeighbours == null) {
+        if (!model.mightContainColour(col)) {
+            // This pixel colour is not present in this pattern's texture
+            return false;
+        }
+
+        if (cache == null) {
+            return isBackground(image, x, y, col);
+        }
+
+        long key = WindowFingerprint.window(
+                column(image, x - 1, y),
+                column(image, x, y),
+                column(image, x + 1, y));
+        int cached = cache.get(key);
+        if (cached != DecisionCache.MISS) {
+            cache.recordLookups(1, 0);
+            return cached == 1;
+        }
+
+        boolean decision = isBackground(image, x, y, col);
+        cache.put(key, decision);
+        cache.recordLookups(0, 1);
+        return decision;
+    }
+
+    /**
+     * Hashes the column of 3 pixels centred on the given pixel.
+     * 
+     * @param image
+     * @param x
+     * @param y
+     * @return
+     */
+    private static long column(BufferedImage image, int x, int y) {
+        return WindowFingerprint.column(
+                image.getRGB(x, y - 1),
+                image.getRGB(x, y),
+                image.getRGB(x, y + 1));
+    }
+
+    /**
+     * Determines whether the given pixel belongs to the background texture,
+     * by checking its neighbours against the model.
+     * 
+     * @param image
+     * @param x
+     * @param y
+     * @param col Colour of the pixel.
+     * @return
+     */
+    private boolean isBackground(BufferedImage image, int x, int y, int col) {
+
+        int index = model.indexOf(col);
+        if (index == IntIntHashMap.NOT_FOUND) {
             // This pixel colour is not present in this pattern's texture
             return false;
         }
         
         int numValidNeighbours = 0;
         
-        if (validNeighbours.north.contains(image.getRGB(x + 0, y - 1))) {
-            numValidNeighbours++;
+        for (int d = 0; d < model.getNumDirections(); d++) {
+            int neighbour = image.getRGB(
+                    x + model.getDX(d),
+                    y + model.getDY(d));
+            if (model.isValidNeighbour(index, d, neighbour)) {
+                numValidNeighbours++;
+            }
         }
 
-        if (validNeighbours.northEast.contains(image.getRGB(x + 1, y - 1))) {
-            numValidNeighbours++;
+        return numValidNeighbours >= requiredNeighbours;
+    }
+
+    @Override
+    public BitMask matchAll(BufferedImage image) {
+        return matchAll(image, null);
+    }
+
+    /**
+     * Only the candidate pixels are checked against the model, or all pixels
+     * if candidates is null.
+     */
+    @Override
+    public BitMask matchAll(BufferedImage image, BitMask candidates) {
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = ImageUtils.getPixels(image);
+        BitMask result = new BitMask(width, height);
+
+        // Offset of each neighbour within the pixel array
+        int[] offsets = new int[model.getNumDirections()];
+        for (int d = 0; d < offsets.length; d++) {
+            offsets[d] = model.getDY(d) * width + model.getDX(d);
         }
 
-        if (validNeighbours.east.contains(image.getRGB(x + 1, y + 0))) {
-            numValidNeighbours++;
+        // When most windows are cached, a single cache lookup per pixel beats
+        // even the adjacency matrices, so those are only used without a cache
+        // (unless the matrices have been compiled into a kernel)
+        if (kernel != null
+                || (cache == null && model.hasAdjacencyMatrices())) {
+            matchAllByPaletteIndex(pixels, width, height, offsets, candidates,
+                    result);
+            return result;
         }
 
-        if (validNeighbours.southEast.contains(image.getRGB(x + 1, y + 1))) {
-            numValidNeighbours++;
+        // Hash of the column of 3 pixels centred on each pixel of the row;
+        // only the columns around the candidates are needed
+        long[] columns = cache != null ? new long[width] : null;
+        BitMask needed = candidates != null ? candidates.dilate() : null;
+        long hits = 0;
+        long misses = 0;
+
+        for (int y = radius; y < height - radius; y++) {
+
+            if (cache != null) {
+                for (int x = 0; x < width; x++) {
+                    if (needed != null && needed.getWord(x, y) == 0) {
+                        x |= 63;
+                        continue;
+                    }
+                    columns[x] = WindowFingerprint.column(
+                            pixels, width, y * width + x);
+                }
+            }
+
+            for (int x = radius; x < width - radius; x++) {
+
+                int i = y * width + x;
+
+                if (candidates != null && candidates.getWord(x, y) == 0) {
+                    // Skip the rest of this word
+                    x |= 63;
+                    continue;
+                }
+
+                if (candidates != null && !candidates.get(x, y)) {
+                    continue;
+                }
+
+                if (!model.mightContainColour(pixels[i])) {
+                    // Most foreground pixels should be rejected here
+                    continue;
+                }
+
+                if (cache == null) {
+                    if (isBackground(pixels, i, offsets)) {
+                        result.set(x, y);
+                    }
+                    continue;
+                }
+
+                long key = WindowFingerprint.window(
+                        columns[x - 1], columns[x], columns[x + 1]);
+                int cached = cache.get(key);
+                if (cached == DecisionCache.MISS) {
+                    boolean decision = isBackground(pixels, i, offsets);
+                    cache.put(key, decision);
+                    cached = decision ? 1 : 0;
+                    misses++;
+                } else {
+                    hits++;
+                }
+                if (cached == 1) {
+                    result.set(x, y);
+                }
+            }
         }
 
-        if (validNeighbours.south.contains(image.getRGB(x + 0, y + 1))) {
-            numValidNeighbours++;
+        if (cache != null) {
+            cache.recordLookups(hits, misses);
+            System.out.println("Decision cache: " + hits + " hits, " +
+                    misses + " misses");
         }
 
-        if (validNeighbours.southWest.contains(image.getRGB(x - 1, y + 1))) {
-            numValidNeighbours++;
+        return result;
+    }
+
+    /**
+     * Determines whether the pixel at the given index belongs to the
+     * background texture, by checking its neighbours against the model.
+     * 
+     * @param pixels
+     * @param i
+     * @param offsets Offset of each neighbour within the pixel array.
+     * @return
+     */
+    private boolean isBackground(int[] pixels, int i, int[] offsets) {
+
+        int index = model.indexOf(pixels[i]);
+        if (index == IntIntHashMap.NOT_FOUND) {
+            return false;
         }
 
-        if (validNeighbours.west.contains(image.getRGB(x - 1, y + 0))) {
-            numValidNeighbours++;
+        int numValidNeighbours = 0;
+
+        for (int d = 0; d < offsets.length; d++) {
+            if (model.isValidNeighbour(index, d, pixels[i + offsets[d]])) {
+                numValidNeighbours++;
+            }
         }
 
-        if (validNeighbours.northWest.contains(image.getRGB(x - 1, y - 1))) {
-            numValidNeighbours++;
+        return numValidNeighbours >= requiredNeighbours;
+    }
+
+    /**
+     * Classifies the given pixels using the model's adjacency matrices.
+     * 
+     * Each pixel's colour is looked up in the palette just once, after which
+     * every neighbour check is a single bit test. Unknown colours are given
+     * an index that is never valid, so the neighbours can be counted without
+     * branching.
+     * 
+     * @param pixels
+     * @param width
+     * @param height
+     * @param offsets
+     * @param candidates Pixels to check, or null to check all pixels.
+     * @param result
+     */
+    private void matchAllByPaletteIndex(int[] pixels, int width, int height,
+            int[] offsets, BitMask candidates, BitMask result) {
+
+        // Only the candidates and their neighbours need to be looked up
+        BitMask needed = candidates;
+        for (int r = 0; r < radius && needed != null; r++) {
+            needed = needed.dilate();
         }
 
-        return numValidNeighbours >= strictness;
+        // Only colours that pass the presence test need to be looked up
+        int unknown = model.getUnknownPaletteIndex();
+        int[] paletteIndices = new int[pixels.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+
+                if (needed != null && needed.getWord(x, y) == 0) {
+                    // Skip the rest of this word
+                    x |= 63;
+                    continue;
+                }
+
+                int i = y * width + x;
+                int col = pixels[i];
+                int index = model.mightContainColour(col)
+                        ? model.paletteIndexOf(col)
+                        : IntIntHashMap.NOT_FOUND;
+                paletteIndices[i] = index == IntIntHashMap.NOT_FOUND
+                        ? unknown
+                        : index;
+            }
+        }
+
+        if (kernel != null) {
+            kernel.classify(paletteIndices, width, height, candidates, result);
+            return;
+        }
+
+        int numColours = model.getNumColours();
+
+        for (int y = radius; y < height - radius; y++) {
+            for (int x = radius; x < width - radius; x++) {
+
+                int i = y * width + x;
+
+                if (candidates != null && candidates.getWord(x, y) == 0) {
+                    // Skip the rest of this word
+                    x |= 63;
+                    continue;
+                }
+
+                if (candidates != null && !candidates.get(x, y)) {
+                    continue;
+                }
+
+                int index = paletteIndices[i];
+                if (index >= numColours) {
+                    // This pixel colour has not been learned
+                    continue;
+                }
+
+                int numValidNeighbours = 0;
+
+                for (int d = 0; d < offsets.length; d++) {
+                    numValidNeighbours += model.neighbourBit(
+                            index, d, paletteIndices[i + offsets[d]]);
+                }
+
+                if (numValidNeighbours >= requiredNeighbours) {
+                    result.set(x, y);
+                }
+            }
+        }
     }
 
 }
@@ -0,0 +1,346 @@
+package main;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+/**
+ * ExactPixelPatternMatcher for games with parallax scrolling, where the
+ * background is made up of several layers that scroll at different speeds.
+ *
+ * Each layer should be a large image of the whole layer, in which the parts
+ * covered by layers in front (or with nothing drawn) are fully transparent.
+ * The position of each screenshot within each layer is found independently
+ * using phase correlation, ignoring the transparent parts of the layer. The
+ * expected colour of a pixel is then taken from the front-most layer that is
+ * opaque at that point, and compared exactly, as in exact mode.
+ *
+ * Only fully-transparent pixels let the layers behind show through; pixels
+ * with any other alpha are treated as opaque, so layers should not rely on
+ * blending.
+ */
+public class ParallaxPixelPatternMatcher extends ExactPixelPatternMatcher {
+
+    /**
+     * Number of correlation peaks to verify when registering a layer.
+     */
+    private static final int NUM_CANDIDATES = 4;
+
+    /**
+     * Horizontal offset recorded for a layer that is not visible in a
+     * screenshot.
+     */
+    private static final int HIDDEN = -1;
+
+    /**
+     * Offsets of a screenshot within each layer.
+     */
+    private static final class Registration {
+
+        final BufferedImage image;
+        final int[] x;
+        final int[] y;
+
+        Registration(BufferedImage image, int[] x, int[] y) {
+            this.image = image;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /**
+     * Pixels of each layer, front to back.
+     */
+    private final int[][] layers;
+
+    /**
+     * Width of each layer.
+     */
+    private final int[] layerWidths;
+
+    /**
+     * Height of each layer.
+     */
+    private final int[] layerHeights;
+
+    /**
+     * Finds the position of each screenshot within each layer.
+     */
+    private final PhaseCorrelator[] correlators;
+
+    /**
+     * Offsets of the screenshot most recently registered by each thread.
+     * 
+     * This is per-thread so that threads processing different screenshots at
+     * the same time do not see each other's offsets.
+     */
+    private final ThreadLocal<Registration> registration =
+            new ThreadLocal<>();
+
+    /**
+     * Creates a ParallaxPixelPatternMatcher.
+     * 
+     * @param layers Background layers, front to back.
+     * @param strictness
+     */
+    public ParallaxPixelPatternMatcher(
+            List<BufferedImage> layers,
+            int strictness) {
+
+        super(ImageUtils.getPixels(layers.get(0)),
+                layers.get(0).getWidth(),
+                strictness);
+
+        int numLayers = layers.size();
+        this.layers = new int[numLayers][];
+        layerWidths = new int[numLayers];
+        layerHeights = new int[numLayers];
+        correlators = new PhaseCorrelator[numLayers];
+
+        for (int k = 0; k < numLayers; k++) {
+            BufferedImage layer = layers.get(k);
+            this.layers[k] = ImageUtils.getPixels(layer);
+            layerWidths[k] = layer.getWidth();
+            layerHeights[k] = layer.getHeight();
+            correlators[k] = new PhaseCorrelator(this.layers[k],
+                    layerWidths[k], layerHeights[k], true);
+        }
+
+        System.out.println("Background has " + numLayers + " layers");
+    }
+
+    @Override
+    public boolean matches(BufferedImage image, int x, int y) {
+        registrationFor(image);
+        return super.matches(image, x, y);
+    }
+
+    @Override
+    public MatchResult classify(BufferedImage image, BitMask candidates) {
+        registrationFor(image);
+        return super.classify(image, candidates);
+    }
+
+    /**
+     * Gets the offsets of the given screenshot within each layer, registering
+     * it if it has not been seen before.
+     * 
+     * @param image
+     * @return
+     */
+    private Registration registrationFor(BufferedImage image) {
+        Registration reg = registration.get();
+        if (reg == null || reg.image != image) {
+            reg = register(image);
+            registration.set(reg);
+        }
+        return reg;
+    }
+
+    /**
+     * Finds the offset of the given screenshot within each layer using phase
+     * correlation.
+     * 
+     * Layers are registered front to back. Once a layer has been registered,
+     * the pixels it covers are hidden from the layers behind it, so that each
+     * layer is only correlated with the parts of the screenshot in which it
+     * can actually be seen.
+     * 
+     * @param image
+     * @return
+     */
+    private Registration register(BufferedImage image) {
+
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+
+        // Copy of the screenshot in which covered pixels are made transparent
+        // (and so ignored by the correlators)
+        int[] pixels = ImageUtils.getPixels(image).clone();
+
+        int numLayers = layers.length;
+        int[] xs = new int[numLayers];
+        int[] ys = new int[numLayers];
+
+        for (int k = 0; k < numLayers; k++) {
+            if (imageWidth > layerWidths[k]
+                    || imageHeight > layerHeights[k]) {
+                throw new IllegalArgumentException(
+                        "Screenshot is larger than background layer " + k);
+            }
+        }
+
+        for (int k = 0; k < numLayers; k++) {
+
+            int[] offsets = correlators[k].findPeaks(
+                    pixels, imageWidth, imageHeight, NUM_CANDIDATES);
+
+            // Pick the candidate that best agrees with the visible pixels
+            int bestScore = 0;
+            xs[k] = HIDDEN;
+            for (int c = 0; c < offsets.length; c += 2) {
+                int score = scoreLayer(pixels, imageWidth, imageHeight, k,
+                        offsets[c], offsets[c + 1]);
+                if (score > bestScore) {
+                    xs[k] = offsets[c];
+                    ys[k] = offsets[c + 1];
+                    bestScore = score;
+                }
+            }
+
+            if (xs[k] == HIDDEN) {
+                // The layer disagrees with the screenshot wherever we put
+                // it, so it must be completely hidden by the layers in front
+                System.out.println("Layer " + k + " is not visible");
+                continue;
+            }
+
+            System.out.println("Screenshot is at (" + xs[k] + ", " + ys[k] +
+                    ") in layer " + k);
+
+            hideCoveredPixels(pixels, imageWidth, imageHeight, k, xs[k],
+                    ys[k]);
+        }
+
+        return new Registration(image, xs, ys);
+    }
+
+    /**
+     * Makes transparent every pixel of the given image that is covered by
+     * the opaque parts of a layer, at the given offset.
+     * 
+     * @param pixels
+     * @param imageWidth
+     * @param imageHeight
+     * @param k Index of the layer.
+     * @param offsetX
+     * @param offsetY
+     */
+    private void hideCoveredPixels(int[] pixels, int imageWidth,
+            int imageHeight, int k, int offsetX, int offsetY) {
+
+        int[] layer = layers[k];
+        int layerWidth = layerWidths[k];
+
+        for (int y = 0; y < imageHeight; y++) {
+            int i = y * imageWidth;
+            int j = (y + offsetY) * layerWidth + offsetX;
+            for (int x = 0; x < imageWidth; x++) {
+                if ((layer[j + x] >>> 24) != 0) {
+                    pixels[i + x] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Measures how well a layer agrees with the visible pixels of the given
+     * image, at the given offset.
+     * 
+     * @param pixels
+     * @param imageWidth
+     * @param imageHeight
+     * @param k Index of the layer.
+     * @param offsetX
+     * @param offsetY
+     * @return Number of visible pixels that are the same colour as the
+     *         opaque parts of the layer, minus the number that differ.
+     */
+    private int scoreLayer(int[] pixels, int imageWidth, int imageHeight,
+            int k, int offsetX, int offsetY) {
+
+        int[] layer = layers[k];
+        int layerWidth = layerWidths[k];
+        int score = 0;
+
+        for (int y = 0; y < imageHeight; y++) {
+            int i = y * imageWidth;
+            int j = (y + offsetY) * layerWidth + offsetX;
+            for (int x = 0; x < imageWidth; x++) {
+                int colour = layer[j + x];
+                if ((colour >>> 24) == 0 || (pixels[i + x] >>> 24) == 0) {
+                    continue;
+                }
+                score += pixels[i + x] == colour ? 1 : -1;
+            }
+        }
+
+        return score;
+    }
+
+    /**
+     * Gets the expected colour of the given point of a screenshot.
+     * 
+     * @param reg
+     * @param x
+     * @param y
+     * @return Colour of the front-most opaque layer, or 0 if all layers are
+     *         transparent at this point.
+     */
+    private int backgroundColour(Registration reg, int x, int y) {
+        for (int k = 0; k < layers.length; k++) {
+            if (reg.x[k] == HIDDEN) {
+                continue;
+            }
+            int colour = layers[k][(y + reg.y[k]) * layerWidths[k]
+                    + x + reg.x[k]];
+            if ((colour >>> 24) != 0) {
+                return colour;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    boolean matchesBackground(int colour, int x, int y) {
+        Registration reg = registration.get();
+        int expected = backgroundColour(reg, x, y);
+        return (expected >>> 24) != 0 && colour == expected;
+    }
+
+    @Override
+    BitMask findEqualPixels(BufferedImage image, BitMask needed) {
+
+        Registration reg = registrationFor(image);
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+        int[] pixels = ImageUtils.getPixels(image);
+        BitMask equal = new BitMask(imageWidth, imageHeight);
+
+        // Compare to the front layer where it is opaque, and only look at the
+        // layers behind for the pixels that are still unresolved
+        BitMask resolved = new BitMask(imageWidth, imageHeight);
+
+        for (int k = 0; k < layers.length; k++) {
+            if (reg.x[k] == HIDDEN) {
+                continue;
+            }
+            int[] layer = layers[k];
+            int layerWidth = layerWidths[k];
+            for (int y = 0; y < imageHeight; y++) {
+                int i = y * imageWidth;
+                int j = (y + reg.y[k]) * layerWidth + reg.x[k];
+                for (int x = 0; x < imageWidth; x++) {
+                    if (needed != null && needed.getWord(x, y) == 0) {
+                        // Skip the rest of this word
+                        x |= 63;
+                        continue;
+                    }
+                    if (resolved.get(x, y)) {
+                        continue;
+                    }
+                    int colour = layer[j + x];
+                    if ((colour >>> 24) == 0) {
+                        continue;
+                    }
+                    resolved.set(x, y);
+                    if (pixels[i + x] == colour) {
+                        equal.set(x, y);
+                    }
+                }
+            }
+        }
+
+        return equal;
+    }
+
+}
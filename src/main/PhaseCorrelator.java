@@ -0,0 +1,290 @@
+package main;
+
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Finds the position of an image within a larger reference image, using
+ * phase correlation.
+ *
+ * Phase correlation compares the image to the reference at every possible
+ * offset at once, in O(n log n) time, using FFTs. The spectrum of the
+ * reference is computed up-front, so each image requires just one forward and
+ * one inverse transform.
+ *
+ * Instances are immutable, so they can be shared between threads. However,
+ * each correlation needs working buffers as large as the padded reference (16
+ * bytes per pixel), which can be hundreds of megabytes for a large level map.
+ * To keep the buffers of all correlations that are running at the same time
+ * within MEMORY_FRACTION of the maximum heap size, threads wait for memory to
+ * become available before correlating.
+ */
+public class PhaseCorrelator {
+
+    /**
+     * Magnitude below which a frequency is ignored during phase correlation,
+     * to avoid amplifying rounding errors.
+     */
+    private static final double MIN_MAGNITUDE = 1e-9;
+
+    /**
+     * Fraction of the maximum heap size that the working buffers of all
+     * correlations may use at the same time.
+     */
+    private static final double MEMORY_FRACTION = 0.25;
+
+    /**
+     * Memory available for working buffers, in megabytes.
+     */
+    private static final int MEMORY_BUDGET_MB = (int) Math.max(1,
+            Runtime.getRuntime().maxMemory() * MEMORY_FRACTION / (1 << 20));
+
+    /**
+     * One permit per megabyte of the memory budget.
+     */
+    private static final Semaphore MEMORY = new Semaphore(MEMORY_BUDGET_MB);
+
+    /**
+     * Width of the reference image.
+     */
+    private final int width;
+
+    /**
+     * Height of the reference image.
+     */
+    private final int height;
+
+    /**
+     * Width of the padded FFT grid.
+     */
+    private final int fftWidth;
+
+    /**
+     * Height of the padded FFT grid.
+     */
+    private final int fftHeight;
+
+    /**
+     * Spectrum of the reference image (real parts).
+     */
+    private final double[] spectrumRe;
+
+    /**
+     * Spectrum of the reference image (imaginary parts).
+     */
+    private final double[] spectrumIm;
+
+    /**
+     * Whether fully-transparent pixels are ignored.
+     */
+    private final boolean ignoreTransparent;
+
+    /**
+     * Number of megabytes of the memory budget needed by each correlation.
+     */
+    private final int bufferMB;
+
+    /**
+     * Creates a PhaseCorrelator.
+     * 
+     * @param reference Pixels of the reference image.
+     * @param width
+     * @param height
+     * @param ignoreTransparent True if fully-transparent pixels (of both the
+     *        reference and the images) should be ignored, rather than treated
+     *        as a colour.
+     */
+    public PhaseCorrelator(int[] reference, int width, int height,
+            boolean ignoreTransparent) {
+
+        this.width = width;
+        this.height = height;
+        this.ignoreTransparent = ignoreTransparent;
+
+        // Pad the reference to a power of 2 in each direction; since every
+        // image must fit inside the reference, this is enough to prevent the
+        // (circular) correlation from wrapping around
+        fftWidth = Fft.nextPowerOfTwo(width);
+        fftHeight = Fft.nextPowerOfTwo(height);
+        spectrumRe = new double[fftWidth * fftHeight];
+        spectrumIm = new double[fftWidth * fftHeight];
+        toSignal(reference, width, height, spectrumRe, fftWidth,
+                ignoreTransparent);
+        Fft.transform2D(spectrumRe, spectrumIm, fftWidth, fftHeight, false);
+
+        // A correlation larger than the whole budget is allowed to run on
+        // its own
+        long bufferBytes = 16L * fftWidth * fftHeight;
+        bufferMB = (int) Math.min(MEMORY_BUDGET_MB,
+                Math.max(1, (bufferBytes + (1 << 20) - 1) >> 20));
+        System.out.println("Phase correlation needs " + bufferMB +
+                " MB per screenshot (" + MEMORY_BUDGET_MB + " MB available)");
+    }
+
+    /**
+     * Converts pixels to a zero-mean signal suitable for correlation.
+     * 
+     * Exact matching only cares whether colours are equal, so each colour is
+     * mapped to a pseudo-random value rather than, say, its brightness. This
+     * way, different colours are uncorrelated, which gives a sharper peak.
+     * Subtracting the mean ensures that the zero padding (and any ignored
+     * pixels) are neutral.
+     * 
+     * @param pixels
+     * @param width
+     * @param height
+     * @param signal Array to receive the signal.
+     * @param stride Row length of the signal array.
+     * @param ignoreTransparent
+     */
+    private static void toSignal(int[] pixels, int width, int height,
+            double[] signal, int stride, boolean ignoreTransparent) {
+
+        double total = 0;
+        int count = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int colour = pixels[y * width + x];
+                if (ignoreTransparent && (colour >>> 24) == 0) {
+                    continue;
+                }
+                double value = IntIntHashMap.hash(colour)
+                        / (double) Integer.MAX_VALUE;
+                signal[y * stride + x] = value;
+                total += value;
+                count++;
+            }
+        }
+
+        double mean = count == 0 ? 0 : total / count;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (ignoreTransparent
+                        && (pixels[y * width + x] >>> 24) == 0) {
+                    continue;
+                }
+                signal[y * stride + x] -= mean;
+            }
+        }
+    }
+
+    /**
+     * Finds the offsets at which the given image best correlates with the
+     * reference image.
+     * 
+     * Sprites (or other layers) can cause a false peak to be slightly higher
+     * than the true one, so callers should check the best few candidates
+     * against the actual pixels.
+     * 
+     * @param pixels
+     * @param imageWidth Must not exceed the width of the reference.
+     * @param imageHeight Must not exceed the height of the reference.
+     * @param numPeaks Maximum number of offsets to return.
+     * @return Horizontal and vertical component of each offset, interleaved,
+     *         best first.
+     */
+    public int[] findPeaks(int[] pixels, int imageWidth, int imageHeight,
+            int numPeaks) {
+
+        if (imageWidth > width || imageHeight > height) {
+            throw new IllegalArgumentException(
+                    "Image is larger than the reference");
+        }
+
+        // Callers never hold more than one correlation at a time, so this
+        // cannot deadlock
+        MEMORY.acquireUninterruptibly(bufferMB);
+        try {
+            return correlate(pixels, imageWidth, imageHeight, numPeaks);
+        } finally {
+            MEMORY.release(bufferMB);
+        }
+    }
+
+    /**
+     * Finds the offsets at which the given image best correlates with the
+     * reference image, once memory for the working buffers is available.
+     * 
+     * @param pixels
+     * @param imageWidth
+     * @param imageHeight
+     * @param numPeaks
+     * @return
+     */
+    private int[] correlate(int[] pixels, int imageWidth, int imageHeight,
+            int numPeaks) {
+
+        double[] re = new double[fftWidth * fftHeight];
+        double[] im = new double[fftWidth * fftHeight];
+        toSignal(pixels, imageWidth, imageHeight, re, fftWidth,
+                ignoreTransparent);
+        Fft.transform2D(re, im, fftWidth, fftHeight, false);
+
+        // Normalised cross-power spectrum: reference * conj(image)
+        for (int i = 0; i < re.length; i++) {
+            double crossRe = spectrumRe[i] * re[i] + spectrumIm[i] * im[i];
+            double crossIm = spectrumIm[i] * re[i] - spectrumRe[i] * im[i];
+            double magnitude = Math.hypot(crossRe, crossIm);
+            if (magnitude < MIN_MAGNITUDE) {
+                re[i] = 0;
+                im[i] = 0;
+            } else {
+                re[i] = crossRe / magnitude;
+                im[i] = crossIm / magnitude;
+            }
+        }
+        Fft.transform2D(re, im, fftWidth, fftHeight, true);
+
+        // Consider only offsets at which the image lies within the reference
+        int maxX = width - imageWidth;
+        int maxY = height - imageHeight;
+
+        // Find the highest peaks, in descending order
+        int[] candidates = new int[numPeaks];
+        double[] scores = new double[numPeaks];
+        Arrays.fill(scores, Double.NEGATIVE_INFINITY);
+        int numFound = 0;
+        for (int y = 0; y <= maxY; y++) {
+            for (int x = 0; x <= maxX; x++) {
+                double score = re[y * fftWidth + x];
+                if (score <= scores[numPeaks - 1]) {
+                    continue;
+                }
+                int k = numPeaks - 1;
+                for (; k > 0 && score > scores[k - 1]; k--) {
+                    scores[k] = scores[k - 1];
+                    candidates[k] = candidates[k - 1];
+                }
+                scores[k] = score;
+                candidates[k] = y * fftWidth + x;
+                numFound = Math.min(numFound + 1, numPeaks);
+            }
+        }
+
+        int[] offsets = new int[numFound * 2];
+        for (int k = 0; k < numFound; k++) {
+            offsets[k * 2] = candidates[k] % fftWidth;
+            offsets[k * 2 + 1] = candidates[k] / fftWidth;
+        }
+        return offsets;
+    }
+
+    /**
+     * Gets the width of the padded FFT grid.
+     * 
+     * @return
+     */
+    public int getFftWidth() {
+        return fftWidth;
+    }
+
+    /**
+     * Gets the height of the padded FFT grid.
+     * 
+     * @return
+     */
+    public int getFftHeight() {
+        return fftHeight;
+    }
+
+}
@@ -6,6 +6,11 @@ import java.awt.image.BufferedImage;
  * Classes implementing this interface are capable of determining, for each
  * pixel in an image, whether it matches a pre-supplied background texture.
  *
+ * Implementations must be safe to share between threads: any number of
+ * threads may classify different images using the same instance at the same
+ * time. Classification must never modify the image being classified, and any
+ * state the matcher keeps between calls (e.g. a cache) must be thread-safe.
+ *
  * @author Dan Bryce
  */
 public interface PixelPatternMatcher {
@@ -13,6 +18,8 @@ public interface PixelPatternMatcher {
     /**
      * Determines whether the given pixel belongs to the background texture.
      * 
+     * This must not modify the image.
+     * 
      * @param image
      * @param x
      * @param y
@@ -20,4 +27,97 @@ public interface PixelPatternMatcher {
      */
     boolean matches(BufferedImage image, int x, int y);
 
+    /**
+     * Determines which pixels of the given image belong to the background
+     * texture.
+     * 
+     * Edge pixels are never matched, since their neighbourhood is incomplete.
+     * 
+     * The default implementation simply calls matches for each pixel;
+     * implementations are encouraged to override this with something faster.
+     * 
+     * @param image
+     * @return Mask in which the bits of all background pixels are set.
+     */
+    default BitMask matchAll(BufferedImage image) {
+
+        BitMask result = new BitMask(image.getWidth(), image.getHeight());
+
+        for (int y = 1; y < image.getHeight() - 1; y++) {
+            for (int x = 1; x < image.getWidth() - 1; x++) {
+                if (matches(image, x, y)) {
+                    result.set(x, y);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Determines which of the given candidate pixels belong to the background
+     * texture.
+     * 
+     * Pixels that are not candidates are never matched. This allows cheaper
+     * tests to decide most pixels first (see CascadingPixelPatternMatcher).
+     * 
+     * The default implementation calls matches for each candidate pixel.
+     * 
+     * @param image
+     * @param candidates Mask in which the bits of all pixels to be tested are
+     *        set.
+     * @return Mask in which the bits of all background pixels are set.
+     */
+    default BitMask matchAll(BufferedImage image, BitMask candidates) {
+
+        BitMask result = new BitMask(image.getWidth(), image.getHeight());
+
+        for (int y = 1; y < image.getHeight() - 1; y++) {
+            for (int x = 1; x < image.getWidth() - 1; x++) {
+                if (candidates.get(x, y) && matches(image, x, y)) {
+                    result.set(x, y);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Classifies every pixel of the given image, as matchAll does, also
+     * recording any pixels the matcher was uncertain about.
+     * 
+     * The default implementation never reports any uncertain pixels.
+     * 
+     * @param image
+     * @return
+     */
+    default MatchResult classify(BufferedImage image) {
+        return new MatchResult(
+                matchAll(image),
+                new BitMask(image.getWidth(), image.getHeight()));
+    }
+
+    /**
+     * Classifies the given candidate pixels, as matchAll does, also recording
+     * any of them the matcher was uncertain about.
+     * 
+     * Pixels that are not candidates are neither matched nor reported as
+     * uncertain, and implementations should avoid reading them where
+     * possible (e.g. so that a region of interest can be processed without
+     * touching the rest of the image).
+     * 
+     * The default implementation never reports any uncertain pixels.
+     * 
+     * @param image
+     * @param candidates Mask in which the bits of all pixels to be classified
+     *        are set.
+     * @return
+     */
+    default MatchResult classify(BufferedImage image, BitMask candidates) {
+        return new MatchResult(
+                matchAll(image, candidates),
+                new BitMask(image.getWidth(), image.getHeight()));
+    }
+
 }
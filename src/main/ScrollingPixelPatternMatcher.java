@@ -0,0 +1,199 @@
+package main;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * ExactPixelPatternMatcher for games with a scrolling camera.
+ *
+ * The supplied background should be a large image of the whole scene (e.g. a
+ * full level map). The position of each screenshot within this background is
+ * found using phase correlation, and pixels are then compared to the
+ * background at that offset, exactly as in exact mode.
+ */
+public class ScrollingPixelPatternMatcher extends ExactPixelPatternMatcher {
+
+    /**
+     * Number of correlation peaks to verify when registering a screenshot.
+     * 
+     * Sprites can cause a false peak to be slightly higher than the true one,
+     * so we check the best few candidates against the actual pixels.
+     */
+    private static final int NUM_CANDIDATES = 4;
+
+    /**
+     * Offset of a screenshot within the background.
+     */
+    private static final class Registration {
+
+        final BufferedImage image;
+        final int x;
+        final int y;
+
+        Registration(BufferedImage image, int x, int y) {
+            this.image = image;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /**
+     * Height of the background.
+     */
+    private final int height;
+
+    /**
+     * Finds the position of each screenshot within the background.
+     */
+    private final PhaseCorrelator correlator;
+
+    /**
+     * Offset of the screenshot most recently registered by each thread.
+     * 
+     * This is per-thread so that threads processing different screenshots at
+     * the same time do not see each other's offsets.
+     */
+    private final ThreadLocal<Registration> registration =
+            new ThreadLocal<>();
+
+    /**
+     * Creates a ScrollingPixelPatternMatcher.
+     * 
+     * @param background
+     * @param strictness
+     */
+    public ScrollingPixelPatternMatcher(
+            BufferedImage background,
+            int strictness) {
+
+        super(ImageUtils.getPixels(background),
+                background.getWidth(),
+                strictness);
+
+        this.height = background.getHeight();
+
+        correlator = new PhaseCorrelator(this.background, width, height,
+                false);
+
+        System.out.println("Background spectrum is " +
+                correlator.getFftWidth() + "x" + correlator.getFftHeight());
+    }
+
+    @Override
+    public boolean matches(BufferedImage image, int x, int y) {
+        registrationFor(image);
+        return super.matches(image, x, y);
+    }
+
+    @Override
+    public MatchResult classify(BufferedImage image, BitMask candidates) {
+        registrationFor(image);
+        return super.classify(image, candidates);
+    }
+
+    /**
+     * Gets the offset of the given screenshot within the background,
+     * registering it if it has not been seen before.
+     * 
+     * @param image
+     * @return
+     */
+    private Registration registrationFor(BufferedImage image) {
+        Registration reg = registration.get();
+        if (reg == null || reg.image != image) {
+            reg = register(image);
+            registration.set(reg);
+        }
+        return reg;
+    }
+
+    /**
+     * Finds the offset of the given screenshot within the background using
+     * phase correlation.
+     * 
+     * @param image
+     * @return
+     */
+    private Registration register(BufferedImage image) {
+
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+        int[] pixels = ImageUtils.getPixels(image);
+
+        if (imageWidth > width || imageHeight > height) {
+            throw new IllegalArgumentException(
+                    "Screenshot is larger than the background");
+        }
+
+        int[] offsets = correlator.findPeaks(pixels, imageWidth, imageHeight,
+                NUM_CANDIDATES);
+
+        // Pick the candidate with the most pixels matching the background
+        int bestX = 0;
+        int bestY = 0;
+        int bestMatches = -1;
+        for (int k = 0; k < offsets.length; k += 2) {
+            int x = offsets[k];
+            int y = offsets[k + 1];
+            int matches = findEqualPixels(image,
+                    new Registration(image, x, y), null).count();
+            if (matches > bestMatches) {
+                bestX = x;
+                bestY = y;
+                bestMatches = matches;
+            }
+        }
+
+        System.out.println("Screenshot is at (" + bestX + ", " + bestY +
+                ") in background");
+
+        return new Registration(image, bestX, bestY);
+    }
+
+    @Override
+    boolean matchesBackground(int colour, int x, int y) {
+        Registration reg = registration.get();
+        return colour == background[(y + reg.y) * width + x + reg.x];
+    }
+
+    @Override
+    BitMask findEqualPixels(BufferedImage image, BitMask needed) {
+        return findEqualPixels(image, registrationFor(image), needed);
+    }
+
+    /**
+     * Compares the pixels of the given image to the background, at the given
+     * offset.
+     * 
+     * @param image
+     * @param reg
+     * @param needed Mask in which the bits of all pixels to be compared are
+     *        set, or null to compare every pixel.
+     * @return
+     */
+    private BitMask findEqualPixels(BufferedImage image, Registration reg,
+            BitMask needed) {
+
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+        int[] pixels = ImageUtils.getPixels(image);
+        BitMask equal = new BitMask(imageWidth, imageHeight);
+
+        for (int y = 0; y < imageHeight; y++) {
+            int i = y * imageWidth;
+            int j = (y + reg.y) * width + reg.x;
+            for (int x = 0; x < imageWidth; x++) {
+                if (needed != null && needed.getWord(x, y) == 0) {
+                    // Skip the rest of this word
+                    x |= 63;
+                    continue;
+                }
+                if (pixels[i + x] == background[j + x]) {
+                    equal.set(x, y);
+                }
+            }
+        }
+
+        return equal;
+    }
+
+}
@@ -8,8 +8,15 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 
@@ -45,9 +52,10 @@ public class SpriteExtractor {
         /**
          * If set, pixels that match the background but do not have the required
          * number of valid neighbours will have their colour changed according
-         * to HIGHLIGHT_COLOUR.
+         * to HIGHLIGHT_COLOUR in the extracted sprites.
          * 
-         * Only applicable in EXACT mode.
+         * Only applicable in EXACT mode and the modes based on it (TOLERANT,
+         * TILED and SCROLLING).
          */
         public static final boolean HIGHLIGHT_UNCERTAIN_PIXELS = true;
 
@@ -78,7 +86,7 @@ public class SpriteExtractor {
      * Offset at which each sprite region is created, measured in a backwards
      * direction from the first pixel of the sprite that is found when searching
      * for non-empty pixels.
-     *
+     * 
      * If this is too small or too large, sprites may get cut up into multiple
      * images.
      */
@@ -100,6 +108,82 @@ public class SpriteExtractor {
     private static final String IMAGE_FILENAME_REGEX = 
             ".+\\.(?i)(bmp|jpg|gif|png)";
 
+    /**
+     * Maximum difference (0-255) between each colour channel of a pixel and
+     * the same channel of the background for the pixel to match, in TOLERANT
+     * mode.
+     */
+    private static final int COLOUR_TOLERANCE = 16;
+
+    /**
+     * Directory in which learned background models are saved.
+     */
+    private static final String MODEL_DIR = "models";
+
+    /**
+     * Maximum number of decisions to cache in SMART mode, or 0 to disable the
+     * cache.
+     */
+    private static final int DECISION_CACHE_SIZE = 1 << 16;
+
+    /**
+     * Neighbourhood radius used in SMART mode: 1 for 3x3, or 2 for 5x5.
+     * 
+     * A larger neighbourhood sees more context around each pixel, at the cost
+     * of slower learning and matching, and of ignoring a wider border.
+     */
+    private static final int NEIGHBOURHOOD_RADIUS = 1;
+
+    /**
+     * Number of times a neighbouring colour must be seen in the background in
+     * SMART mode before it is considered valid.
+     * 
+     * Raising this ignores rare combinations of colours, which are usually
+     * noise (e.g. JPEG artifacts) rather than part of the texture.
+     */
+    private static final int MIN_NEIGHBOUR_COUNT = 1;
+
+    /**
+     * If set, SMART mode first rejects any pixel whose colour never appears
+     * in the background texture, before running the full check.
+     */
+    private static final boolean CASCADE_COLOUR_PRESENCE = true;
+
+    /**
+     * If set, SMART mode first accepts any pixel whose 3x3 block is identical
+     * to the background image, before running the full check.
+     * 
+     * This only has an effect if a single background image is supplied, and
+     * it is (after cropping) the same size as the screenshots. It is also
+     * skipped unless NEIGHBOURHOOD_RADIUS and MIN_NEIGHBOUR_COUNT are both 1,
+     * since otherwise a matching 3x3 block does not guarantee that the full
+     * check would accept the pixel.
+     */
+    private static final boolean CASCADE_EXACT_MATCH = true;
+
+    /**
+     * Value of BG_IMAGE that causes the background to be synthesized from
+     * the screenshots themselves.
+     */
+    private static final String AUTO_BACKGROUND = "auto";
+
+    /**
+     * Number of screenshots to process at the same time.
+     * 
+     * In SCROLLING and PARALLAX modes, registering each screenshot needs
+     * working memory proportional to the size of the (padded) background, so
+     * registrations may wait for each other to stay within a fixed share of
+     * the heap (see PhaseCorrelator).
+     */
+    private static final int NUM_THREADS =
+            Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Maximum number of screenshots that can be read before their sprites
+     * have been saved.
+     */
+    private static final int MAX_PENDING_IMAGES = NUM_THREADS * 2;
+
     /**
      * Minimum width of a sprite.
      * 
@@ -117,27 +201,33 @@ public class SpriteExtractor {
     /**
      * PixelPatternMatcher used to match the background texture.
      */
-    private PixelPatternMatcher pattern;
+    private final PixelPatternMatcher pattern;
 
     /**
      * Ignored left margin of the input image (pixels).
      */
-    private int borderLeft;
+    private final int borderLeft;
 
     /**
      * Ignored top margin of the input image (pixels).
      */
-    private int borderTop;
+    private final int borderTop;
 
     /**
      * Ignored right margin of the input image (pixels).
      */
-    private int borderRight;
+    private final int borderRight;
 
     /**
      * Ignored bottom margin of the input image (pixels).
      */
-    private int borderBottom;
+    private final int borderBottom;
+
+    /**
+     * Mask of the pixels to process, within the borders, or null to process
+     * every pixel.
+     */
+    private final BitMask roi;
 
     /**
      * Constructs a SpriteExtractor with the given configuration.
@@ -154,11 +244,34 @@ public class SpriteExtractor {
             int borderTop,
             int borderRight,
             int borderBottom) {
+        this(pattern, borderLeft, borderTop, borderRight, borderBottom, null);
+    }
+
+    /**
+     * Constructs a SpriteExtractor that only processes a region of interest.
+     * 
+     * @param pattern
+     * @param borderLeft
+     * @param borderTop
+     * @param borderRight
+     * @param borderBottom
+     * @param roi Mask of the pixels to process, within the borders, or null
+     *        to process every pixel. Pixels outside the mask are never
+     *        classified, and are cleared as if they were background.
+     */
+    public SpriteExtractor(
+            PixelPatternMatcher pattern,
+            int borderLeft,
+            int borderTop,
+            int borderRight,
+            int borderBottom,
+            BitMask roi) {
         this.pattern = pattern;
         this.borderLeft = borderLeft;
         this.borderTop = borderTop;
         this.borderRight = borderRight;
         this.borderBottom = borderBottom;
+        this.roi = roi;
     }
 
     /**
@@ -176,6 +289,12 @@ public class SpriteExtractor {
                 borderTop,
                 image.getWidth() - (borderLeft + borderRight),
                 image.getHeight() - (borderTop + borderBottom));
+
+        if (roi != null && (roi.getWidth() != subImage.getWidth()
+                || roi.getHeight() != subImage.getHeight())) {
+            throw new IllegalArgumentException(
+                    "ROI mask is not the same size as the screenshot");
+        }
         
         // Remove the background texture
         subImage = clearBackgroundPixels(subImage);
@@ -209,16 +328,45 @@ public class SpriteExtractor {
         // check the pixels!
         BufferedImage newImage = ImageUtils.copyImage(image);
         
+        // Classify the whole image (or region of interest) in one go
+        MatchResult matchResult = roi != null
+                ? pattern.classify(image, roi)
+                : pattern.classify(image);
+        BitMask background = matchResult.getBackground();
+        BitMask uncertain = matchResult.getUncertain();
+
+        int numUncertain = matchResult.getNumUncertain();
+        if (numUncertain > 0) {
+            System.out.println("Found " + numUncertain +
+                    " pixels that match the background, but not enough " +
+                    "valid neighbours");
+        }
+
+        // The new image is TYPE_INT_ARGB, so we can work on its pixels
+        // directly
+        int width = image.getWidth();
+        int[] newPixels = ImageUtils.getPixels(newImage);
+        
         // Ignore edge pixels as the pattern won't work on them
         for (int y = 1; y < image.getHeight() - 1; y++) {
-            for (int x = 1; x < image.getWidth() - 1; x++) {
+            for (int x = 1; x < width - 1; x++) {
+
+                int i = y * width + x;
+
+                if (roi != null && roi.getWord(x, y) == 0) {
+                    // Clear the rest of this word in one go
+                    int end = Math.min((x | 63) + 1, width - 1);
+                    Arrays.fill(newPixels, i, y * width + end, BG_COLOUR);
+                    x = end - 1;
+                    continue;
+                }
 
-                if (pattern.matches(image, x, y)) {
-                    newImage.setRGB(x, y, BG_COLOUR);
+                if (background.get(x, y) || (roi != null && !roi.get(x, y))) {
+                    newPixels[i] = BG_COLOUR;
                     
                 } else if (DebugFlags.HIGHLIGHT_UNCERTAIN_PIXELS &&
-                        image.getRGB(x, y) == DebugFlags.HIGHLIGHT_COLOUR) {
-                    newImage.setRGB(x, y, DebugFlags.HIGHLIGHT_COLOUR);
+                        uncertain.get(x, y)) {
+                    newPixels[i] = DebugFlags.HIGHLIGHT_COLOUR;
                 }
 
             }
@@ -240,6 +388,12 @@ public class SpriteExtractor {
         // Skip the edge pixels as they are never modified
         for (int y = 1; y < image.getHeight() - 1; y++) {
             for (int x = 1; x < image.getWidth() - 1; x++) {
+
+                if (roi != null && roi.getWord(x, y) == 0) {
+                    // Skip the rest of this word, which has been cleared
+                    x |= 63;
+                    continue;
+                }
                 
                 int col = image.getRGB(x, y);
                 
@@ -326,7 +480,229 @@ public class SpriteExtractor {
         return sprites;
     }
 
+    /**
+     * Lists the image files in the given directory, sorted by name.
+     * 
+     * @param dir
+     * @return Image files, or null if the directory is invalid.
+     */
+    private static File[] listImageFiles(File dir) {
+        
+        File[] imageFiles = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.matches(IMAGE_FILENAME_REGEX);
+            }
+        });
+        
+        if (imageFiles != null) {
+            Arrays.sort(imageFiles);
+        }
+        
+        return imageFiles;
+    }
+
+    /**
+     * Reads the given image file, or all image files in the given directory.
+     * 
+     * @param file
+     * @return
+     * @throws IOException if any image cannot be read, or there are no images.
+     */
+    private static List<BufferedImage> readImages(File file)
+            throws IOException {
+        
+        File[] imageFiles = file.isDirectory()
+                ? listImageFiles(file)
+                : new File[] { file };
+        
+        if (imageFiles == null || imageFiles.length == 0) {
+            throw new IOException("No image files found: " + file);
+        }
+        
+        List<BufferedImage> images = new ArrayList<>();
+        for (File imageFile : imageFiles) {
+            BufferedImage image = ImageIO.read(imageFile);
+            if (image == null) {
+                throw new IOException("Unsupported image format: " +
+                        imageFile);
+            }
+            images.add(image);
+        }
+        
+        return images;
+    }
+
+    /**
+     * Waits for the sprites extracted from the given screenshot, and saves any
+     * that have not already been saved.
+     * 
+     * @param file Screenshot from which the sprites were extracted.
+     * @param futureSprites
+     * @param spriteHashes Hashes of all sprites saved so far.
+     */
+    private static void saveSprites(File file,
+            Future<List<BufferedImage>> futureSprites,
+            List<String> spriteHashes) {
+
+        List<BufferedImage> sprites;
+        try {
+            sprites = futureSprites.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            System.out.println("Unable to process image: " + file);
+            ex.printStackTrace();
+            return;
+        }
+        System.out.println("Extracted " + sprites.size() + " sprites from " +
+                file);
+        
+        // Ensure "out" directory exists
+        new File("out").mkdir();
+        
+        // Save new sprites
+        for (int i = 0; i < sprites.size(); i++) {
+            
+            BufferedImage sprite = sprites.get(i);
+            
+            // Don't save duplicates
+            try {
+                String hash = ImageUtils.generateHash(sprite);
+                if (spriteHashes.contains(hash)) {
+                    System.out.println("Skipping duplicate sprite");
+                    continue;
+                }
+                spriteHashes.add(hash);
+            } catch (NoSuchAlgorithmException | IOException e) {
+                System.out.println("Error generating hash for sprite");
+            }
+
+            String filename = file.getName();
+            
+            // Remove extension
+            int pos = filename.lastIndexOf(".");
+            if (pos > 0) {
+                filename = filename.substring(0, pos);
+            }
+            
+            filename = "out/" + filename + "_" + i + ".png";
+            
+            try {
+                ImageUtils.saveImage(sprite, filename);
+            } catch (IOException e) {
+                System.out.println("Unable to save image");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Synthesizes a background image from all of the screenshots in the
+     * given directory.
+     * 
+     * The screenshots are read one at a time, so this does not need to hold
+     * them all in memory.
+     * 
+     * @param dir
+     * @return List containing the background image.
+     * @throws IOException if any image cannot be read, or there are no images.
+     */
+    private static List<BufferedImage> synthesizeBackground(File dir)
+            throws IOException {
+
+        File[] imageFiles = listImageFiles(dir);
+        if (imageFiles == null || imageFiles.length == 0) {
+            throw new IOException("No image files found: " + dir);
+        }
+
+        System.out.println("Synthesizing background from " +
+                imageFiles.length + " screenshots");
+
+        BackgroundSynthesizer synthesizer = null;
+        for (File imageFile : imageFiles) {
+            BufferedImage image = ImageIO.read(imageFile);
+            if (image == null) {
+                throw new IOException("Unsupported image format: " +
+                        imageFile);
+            }
+            if (synthesizer == null) {
+                synthesizer = new BackgroundSynthesizer(
+                        image.getWidth(), image.getHeight());
+            }
+            synthesizer.add(image);
+        }
+
+        List<BufferedImage> images = new ArrayList<>();
+        images.add(synthesizer.build());
+        return images;
+    }
+
     ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Reads a region of interest mask.
+     * 
+     * Black or fully-transparent pixels of the mask image are excluded from
+     * processing; all other pixels are included. The mask image must be the
+     * same size as the screenshots, and is cut to the borders in the same
+     * way.
+     * 
+     * @param file
+     * @param screenshotWidth
+     * @param screenshotHeight
+     * @param borderLeft
+     * @param borderTop
+     * @param borderRight
+     * @param borderBottom
+     * @return
+     * @throws IOException if the mask cannot be read, or is the wrong size.
+     */
+    private static BitMask readRoiMask(
+            File file,
+            int screenshotWidth,
+            int screenshotHeight,
+            int borderLeft,
+            int borderTop,
+            int borderRight,
+            int borderBottom) throws IOException {
+
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("Unsupported image format: " + file);
+        }
+
+        if (image.getWidth() != screenshotWidth
+                || image.getHeight() != screenshotHeight) {
+            throw new IOException("ROI mask is " +
+                    image.getWidth() + "x" + image.getHeight() +
+                    ", but the screenshots are " +
+                    screenshotWidth + "x" + screenshotHeight);
+        }
+
+        int width = image.getWidth() - (borderLeft + borderRight);
+        int height = image.getHeight() - (borderTop + borderBottom);
+        if (width <= 0 || height <= 0) {
+            throw new IOException("ROI mask is smaller than the borders");
+        }
+        int[] pixels = ImageUtils.getPixels(
+                image.getSubimage(borderLeft, borderTop, width, height));
+        BitMask roi = new BitMask(width, height);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int colour = pixels[y * width + x];
+                if ((colour >>> 24) != 0 && (colour & 0xffffff) != 0) {
+                    roi.set(x, y);
+                }
+            }
+        }
+
+        int numPixels = width * height;
+        System.out.println("ROI mask includes " +
+                (100L * roi.count() / Math.max(1, numPixels)) +
+                "% of pixels");
+
+        return roi;
+    }
     
     /**
      * Entry point for the application.
@@ -344,7 +720,8 @@ public class SpriteExtractor {
                     "BORDER_LEFT " +
                     "BORDER_TOP " +
                     "BORDER_RIGHT " + 
-                    "BORDER_BOTTOM");
+                    "BORDER_BOTTOM " +
+                    "[ROI_MASK]");
             System.exit(-1);
         }
 
@@ -363,12 +740,40 @@ public class SpriteExtractor {
             int borderBottom = Integer.parseInt(args[7]);
             
             System.out.println("Reading background texture");
-            BufferedImage bgImage = ImageIO.read(new File(bgFilename));
+            List<BufferedImage> bgImages =
+                    AUTO_BACKGROUND.equalsIgnoreCase(bgFilename)
+                            ? synthesizeBackground(new File(imageDir))
+                            : readImages(new File(bgFilename));
+            BufferedImage bgImage = bgImages.get(0);
+            if (bgImages.size() > 1 && mode != 0 && mode != 1 && mode != 6) {
+                System.out.println(
+                        "Multiple background images are only supported " +
+                        "in exact, smart and parallax modes");
+                System.exit(1);
+            }
 
             System.out.println("Producing pattern matcher");
             PixelPatternMatcher pattern = null;
-            if (mode == 0) {
-                pattern = new ExactPixelPatternMatcher(
+            if (mode == 0 && bgImages.size() > 1) {
+                List<PixelPatternMatcher> matchers = new ArrayList<>();
+                for (BufferedImage image : bgImages) {
+                    matchers.add(ExactPixelPatternMatcher.create(
+                            image,
+                            strictness,
+                            borderLeft,
+                            borderTop,
+                            borderRight,
+                            borderBottom));
+                }
+                pattern = new MultiBackgroundPixelPatternMatcher(
+                        bgImages,
+                        matchers,
+                        borderLeft,
+                        borderTop,
+                        borderRight,
+                        borderBottom);
+            } else if (mode == 0) {
+                pattern = ExactPixelPatternMatcher.create(
                         bgImage,
                         strictness,
                         borderLeft,
@@ -376,20 +781,113 @@ public class SpriteExtractor {
                         borderRight,
                         borderBottom);
             } else if (mode == 1) {
-                pattern = new NeighbourhoodPixelPatternMatcher(
+                NeighbourhoodModel model = NeighbourhoodModel.loadOrLearn(
+                        bgImages,
+                        new File(MODEL_DIR),
+                        NEIGHBOURHOOD_RADIUS,
+                        MIN_NEIGHBOUR_COUNT);
+                List<CascadeStage> stages = new ArrayList<>();
+                if (CASCADE_COLOUR_PRESENCE) {
+                    stages.add(new ColourPresenceStage(model));
+                }
+                if (CASCADE_EXACT_MATCH
+                        && model.getRadius() == 1
+                        && model.getMinCount() == 1
+                        && bgImages.size() == 1
+                        && bgImage.getWidth() > borderLeft + borderRight
+                        && bgImage.getHeight() > borderTop + borderBottom) {
+                    stages.add(new ExactMatchStage(
+                            bgImage,
+                            borderLeft,
+                            borderTop,
+                            borderRight,
+                            borderBottom));
+                }
+                pattern = NeighbourhoodPixelPatternMatcher.create(
+                        model,
+                        strictness,
+                        DECISION_CACHE_SIZE);
+                if (!stages.isEmpty()) {
+                    pattern = new CascadingPixelPatternMatcher(stages, pattern);
+                }
+            } else if (mode == 2) {
+                if (strictness != 8) {
+                    System.out.println("Warning: STRICTNESS is ignored in " +
+                            "window mode, which always behaves like " +
+                            "strictness 8 (or stricter)");
+                }
+                if (NEIGHBOURHOOD_RADIUS != 1 || MIN_NEIGHBOUR_COUNT != 1) {
+                    System.out.println("Warning: NEIGHBOURHOOD_RADIUS and " +
+                            "MIN_NEIGHBOUR_COUNT are ignored in window mode");
+                }
+                pattern = new WindowPixelPatternMatcher(bgImage);
+            } else if (mode == 3) {
+                pattern = new TolerantPixelPatternMatcher(
                         bgImage,
+                        strictness,
+                        COLOUR_TOLERANCE,
+                        borderLeft,
+                        borderTop,
+                        borderRight,
+                        borderBottom);
+            } else if (mode == 4) {
+                pattern = new TiledPixelPatternMatcher(
+                        bgImage,
+                        strictness,
+                        borderLeft,
+                        borderTop);
+            } else if (mode == 5) {
+                pattern = new ScrollingPixelPatternMatcher(
+                        bgImage,
+                        strictness);
+            } else if (mode == 6) {
+                pattern = new ParallaxPixelPatternMatcher(
+                        bgImages,
                         strictness);
             } else {
-                System.out.println("Mode must be 0 (exact) or 1 (smart)");
+                System.out.println("Mode must be 0 (exact), 1 (smart), " +
+                        "2 (window), 3 (tolerant), 4 (tiled), " +
+                        "5 (scrolling) or 6 (parallax)");
                 System.exit(1);
             }
             
+            BitMask roi = null;
+            if (args.length > 8) {
+                System.out.println("Reading ROI mask");
+                try {
+                    // The mask must match the screenshots, so check it
+                    // against the first one now rather than failing later
+                    File[] screenshots = listImageFiles(new File(imageDir));
+                    if (screenshots != null && screenshots.length > 0) {
+                        BufferedImage screenshot =
+                                ImageIO.read(screenshots[0]);
+                        if (screenshot == null) {
+                            throw new IOException("Unsupported image " +
+                                    "format: " + screenshots[0]);
+                        }
+                        roi = readRoiMask(
+                                new File(args[8]),
+                                screenshot.getWidth(),
+                                screenshot.getHeight(),
+                                borderLeft,
+                                borderTop,
+                                borderRight,
+                                borderBottom);
+                    }
+                } catch (IOException ex) {
+                    System.out.println(
+                            "Unable to read ROI mask: " + ex.getMessage());
+                    System.exit(1);
+                }
+            }
+            
             se = new SpriteExtractor(
                     pattern,
                     borderLeft,
                     borderTop,
                     borderRight,
-                    borderBottom);
+                    borderBottom,
+                    roi);
 
         } catch (NumberFormatException ex) {
             System.out.println("Argument is not a valid integer!");
@@ -403,12 +901,7 @@ public class SpriteExtractor {
         // Find all screenshots in directory
         System.out.println("Finding files");
         File dir = new File(imageDir);
-        File[] imageFiles = dir.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.matches(IMAGE_FILENAME_REGEX);
-            }
-        });
+        File[] imageFiles = listImageFiles(dir);
 
         if (imageFiles == null) {
             System.out.println("Invalid source directory: " +
@@ -425,75 +918,63 @@ public class SpriteExtractor {
         List<String> processedHashes = new ArrayList<>();
         List<String> spriteHashes = new ArrayList<>();
 
-        // Extract the sprites from each screenshot
-        for (File file : imageFiles) {
-            
-            BufferedImage image = null;
+        // Screenshots are processed in parallel, since the pattern matcher
+        // can be shared between threads, but the sprites are saved in the
+        // original order so that the output does not depend on timing
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+        SpriteExtractor extractor = se;
+        Deque<File> pendingFiles = new ArrayDeque<>();
+        Deque<Future<List<BufferedImage>>> pendingSprites = new ArrayDeque<>();
 
-            // Read image
-            try {
-                System.out.println("Reading image: " + file);
-                image = ImageIO.read(file);
-            } catch (IOException ex) {
-                System.out.println("Unable to read image");
-                ex.printStackTrace();
-                continue;
-            }
-            
-            // Skip duplicate images
-            try {
-                String hash = ImageUtils.generateHash(image);
-                if (processedHashes.contains(hash)) {
-                    System.out.println("Skipping duplicate input image");
+        try {
+            // Extract the sprites from each screenshot
+            for (File file : imageFiles) {
+                
+                BufferedImage image = null;
+
+                // Read image
+                try {
+                    System.out.println("Reading image: " + file);
+                    image = ImageIO.read(file);
+                } catch (IOException ex) {
+                    System.out.println("Unable to read image");
+                    ex.printStackTrace();
                     continue;
                 }
-                processedHashes.add(hash);
-            } catch (NoSuchAlgorithmException | IOException e) {
-                System.out.println("Error generating hash for image");
-            }
-
-            // Extract the sprites
-            System.out.println("Processing...");
-            List<BufferedImage> sprites = se.process(image);
-            System.out.println("Extracted " + sprites.size() + " sprites");
-            
-            // Ensure "out" directory exists
-            new File("out").mkdir();
-            
-            // Save new sprites
-            for (int i = 0; i < sprites.size(); i++) {
-                
-                BufferedImage sprite = sprites.get(i);
                 
-                // Don't save duplicates
+                // Skip duplicate images
                 try {
-                    String hash = ImageUtils.generateHash(sprite);
-                    if (spriteHashes.contains(hash)) {
-                        System.out.println("Skipping duplicate sprite");
+                    String hash = ImageUtils.generateHash(image);
+                    if (processedHashes.contains(hash)) {
+                        System.out.println("Skipping duplicate input image");
                         continue;
                     }
-                    spriteHashes.add(hash);
+                    processedHashes.add(hash);
                 } catch (NoSuchAlgorithmException | IOException e) {
-                    System.out.println("Error generating hash for sprite");
+                    System.out.println("Error generating hash for image");
                 }
 
-                String filename = file.getName();
+                // Extract the sprites
+                System.out.println("Processing...");
+                BufferedImage screenshot = image;
+                pendingFiles.add(file);
+                pendingSprites.add(executor.submit(
+                        () -> extractor.process(screenshot)));
                 
-                // Remove extension
-                int pos = filename.lastIndexOf(".");
-                if (pos > 0) {
-                    filename = filename.substring(0, pos);
-                }
-                
-                filename = "out/" + filename + "_" + i + ".png";
-                
-                try {
-                    ImageUtils.saveImage(sprite, filename);
-                } catch (IOException e) {
-                    System.out.println("Unable to save image");
-                    e.printStackTrace();
+                // Limit the number of screenshots held in memory
+                if (pendingFiles.size() >= MAX_PENDING_IMAGES) {
+                    saveSprites(pendingFiles.poll(), pendingSprites.poll(),
+                            spriteHashes);
                 }
             }
+
+            while (!pendingFiles.isEmpty()) {
+                saveSprites(pendingFiles.poll(), pendingSprites.poll(),
+                        spriteHashes);
+            }
+        } finally {
+            // Don't let the pool's threads keep the JVM alive if saving fails
+            executor.shutdown();
         }
         
         System.out.println("Success!");
@@ -0,0 +1,246 @@
+package main;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * ExactPixelPatternMatcher for backgrounds made up of a single tile, repeated
+ * across the screen.
+ *
+ * The period of the supplied background is detected automatically, and only
+ * one tile is kept; pixels are then compared to the tile by modulo lookup.
+ * The tile is usually small enough to stay in the CPU cache, and it can match
+ * screenshots of any size, so the supplied background need not be a full
+ * screenshot (a single tile will do).
+ */
+public class TiledPixelPatternMatcher extends ExactPixelPatternMatcher {
+
+    /**
+     * Height of the tile.
+     */
+    private final int tileHeight;
+
+    /**
+     * Horizontal position within the tile of the first pixel of each row.
+     */
+    private final int offsetX;
+
+    /**
+     * Vertical position within the tile of the first row.
+     */
+    private final int offsetY;
+
+    /**
+     * Creates a TiledPixelPatternMatcher.
+     * 
+     * @param background
+     * @param strictness
+     * @param borderLeft
+     * @param borderTop
+     */
+    public TiledPixelPatternMatcher(
+            BufferedImage background,
+            int strictness,
+            int borderLeft,
+            int borderTop) {
+        this(ImageUtils.getPixels(background),
+                background.getWidth(),
+                background.getHeight(),
+                strictness,
+                borderLeft,
+                borderTop);
+    }
+
+    private TiledPixelPatternMatcher(
+            int[] pixels,
+            int bgWidth,
+            int bgHeight,
+            int strictness,
+            int borderLeft,
+            int borderTop) {
+
+        this(pixels,
+                bgWidth,
+                findHorizontalPeriod(pixels, bgWidth, bgHeight),
+                findVerticalPeriod(pixels, bgWidth, bgHeight),
+                strictness,
+                borderLeft,
+                borderTop);
+    }
+
+    private TiledPixelPatternMatcher(
+            int[] pixels,
+            int bgWidth,
+            int tileWidth,
+            int tileHeight,
+            int strictness,
+            int borderLeft,
+            int borderTop) {
+
+        super(copyTile(pixels, bgWidth, tileWidth, tileHeight),
+                tileWidth,
+                strictness);
+
+        this.tileHeight = tileHeight;
+
+        // The image being processed has its borders removed, so its first
+        // pixel corresponds to this point in the tile
+        this.offsetX = borderLeft % tileWidth;
+        this.offsetY = borderTop % tileHeight;
+
+        System.out.println("Background tile is " + tileWidth + "x" +
+                tileHeight);
+    }
+
+    /**
+     * Gets the width of the detected tile.
+     * 
+     * @return
+     */
+    int getTileWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height of the detected tile.
+     * 
+     * @return
+     */
+    int getTileHeight() {
+        return tileHeight;
+    }
+
+    /**
+     * Finds the smallest horizontal period of the given background.
+     * 
+     * @param pixels
+     * @param width
+     * @param height
+     * @return Smallest period with which every row repeats at least twice, or
+     *         the full width if there is no such period.
+     */
+    private static int findHorizontalPeriod(int[] pixels, int width,
+            int height) {
+        for (int period = 1; period <= width / 2; period++) {
+            if (hasPeriod(pixels, width, height, period, 0)) {
+                return period;
+            }
+        }
+        return width;
+    }
+
+    /**
+     * Finds the smallest vertical period of the given background.
+     * 
+     * @param pixels
+     * @param width
+     * @param height
+     * @return Smallest period with which every column repeats at least twice,
+     *         or the full height if there is no such period.
+     */
+    private static int findVerticalPeriod(int[] pixels, int width,
+            int height) {
+        for (int period = 1; period <= height / 2; period++) {
+            if (hasPeriod(pixels, width, height, 0, period)) {
+                return period;
+            }
+        }
+        return height;
+    }
+
+    /**
+     * Determines whether every pixel of the background matches the pixel at
+     * the given offset from it (where present).
+     * 
+     * @param pixels
+     * @param width
+     * @param height
+     * @param dx
+     * @param dy
+     * @return
+     */
+    private static boolean hasPeriod(int[] pixels, int width, int height,
+            int dx, int dy) {
+        for (int y = dy; y < height; y++) {
+            int i = y * width;
+            int j = (y - dy) * width - dx;
+            for (int x = dx; x < width; x++) {
+                if (pixels[i + x] != pixels[j + x]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the top-left tile of the given background.
+     * 
+     * @param pixels
+     * @param bgWidth
+     * @param tileWidth
+     * @param tileHeight
+     * @return
+     */
+    private static int[] copyTile(int[] pixels, int bgWidth, int tileWidth,
+            int tileHeight) {
+        int[] tile = new int[tileWidth * tileHeight];
+        for (int y = 0; y < tileHeight; y++) {
+            System.arraycopy(pixels, y * bgWidth, tile, y * tileWidth,
+                    tileWidth);
+        }
+        return tile;
+    }
+
+    @Override
+    boolean matchesBackground(int colour, int x, int y) {
+        int tileX = (x + offsetX) % width;
+        int tileY = (y + offsetY) % tileHeight;
+        return colour == background[tileY * width + tileX];
+    }
+
+    @Override
+    BitMask findEqualPixels(BufferedImage image, BitMask needed) {
+
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+        int[] pixels = ImageUtils.getPixels(image);
+        BitMask equal = new BitMask(imageWidth, imageHeight);
+
+        int tileY = offsetY;
+
+        for (int y = 0; y < imageHeight; y++) {
+
+            int i = y * imageWidth;
+            int tileRow = tileY * width;
+            int tileX = offsetX;
+
+            for (int x = 0; x < imageWidth; x++) {
+
+                if (needed != null && needed.getWord(x, y) == 0) {
+                    // Skip the rest of this word
+                    x |= 63;
+                    tileX = (x + 1 + offsetX) % width;
+                    continue;
+                }
+
+                if (pixels[i + x] == background[tileRow + tileX]) {
+                    equal.set(x, y);
+                }
+
+                // Wrap around to the start of the tile
+                tileX++;
+                if (tileX == width) {
+                    tileX = 0;
+                }
+            }
+
+            tileY++;
+            if (tileY == tileHeight) {
+                tileY = 0;
+            }
+        }
+
+        return equal;
+    }
+
+}
@@ -0,0 +1,142 @@
+package main;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * ExactPixelPatternMatcher that allows pixels to differ slightly from the
+ * background, for use with lossy (e.g. JPEG) screenshots.
+ *
+ * A pixel matches the background if, for every colour channel, its level is
+ * within a certain tolerance of the background's level. Which levels are
+ * acceptable for each background level is precomputed as a 256-bit mask, so
+ * matching a pixel only requires a few shifts and table lookups, and no
+ * colour distance calculations.
+ *
+ * Alpha is ignored.
+ */
+public class TolerantPixelPatternMatcher extends ExactPixelPatternMatcher {
+
+    /**
+     * Number of levels of each colour channel.
+     */
+    private static final int NUM_LEVELS = 256;
+
+    /**
+     * Number of 64-bit words in the mask of acceptable levels for each
+     * background level.
+     */
+    private static final int WORDS_PER_LEVEL = NUM_LEVELS / 64;
+
+    /**
+     * Masks of acceptable levels for each background level.
+     * 
+     * Bit (n % 64) of element (b * WORDS_PER_LEVEL + n / 64) is set if a
+     * pixel channel at level n matches a background channel at level b.
+     */
+    private final long[] acceptedLevels =
+            new long[NUM_LEVELS * WORDS_PER_LEVEL];
+
+    /**
+     * Creates a TolerantPixelPatternMatcher.
+     * 
+     * @param background
+     * @param strictness
+     * @param tolerance Maximum difference between the colour channels of a
+     *        pixel and the background, in colour levels (0-255).
+     * @param borderLeft
+     * @param borderTop
+     * @param borderRight
+     * @param borderBottom
+     */
+    public TolerantPixelPatternMatcher(
+            BufferedImage background,
+            int strictness,
+            int tolerance,
+            int borderLeft,
+            int borderTop,
+            int borderRight,
+            int borderBottom) {
+
+        super(background,
+                strictness,
+                borderLeft,
+                borderTop,
+                borderRight,
+                borderBottom);
+
+        if (tolerance < 0 || tolerance >= NUM_LEVELS) {
+            throw new IllegalArgumentException(
+                    "Colour tolerance must be between 0 and 255");
+        }
+
+        for (int b = 0; b < NUM_LEVELS; b++) {
+            int min = Math.max(0, b - tolerance);
+            int max = Math.min(NUM_LEVELS - 1, b + tolerance);
+            for (int n = min; n <= max; n++) {
+                acceptedLevels[b * WORDS_PER_LEVEL + (n >>> 6)] |= 1L << n;
+            }
+        }
+    }
+
+    @Override
+    boolean matchesBackground(int colour, int x, int y) {
+        return isWithinTolerance(colour, background[y * width + x]);
+    }
+
+    @Override
+    BitMask findEqualPixels(BufferedImage image, BitMask needed) {
+
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+        int[] pixels = ImageUtils.getPixels(image);
+        BitMask equal = new BitMask(imageWidth, imageHeight);
+
+        for (int y = 0; y < imageHeight; y++) {
+            int i = y * imageWidth;
+            int j = y * width;
+            for (int x = 0; x < imageWidth; x++) {
+                if (needed != null && needed.getWord(x, y) == 0) {
+                    // Skip the rest of this word
+                    x |= 63;
+                    continue;
+                }
+                if (isWithinTolerance(pixels[i + x], background[j + x])) {
+                    equal.set(x, y);
+                }
+            }
+        }
+
+        return equal;
+    }
+
+    /**
+     * Determines whether the given colour is within tolerance of the given
+     * background colour.
+     * 
+     * @param colour
+     * @param bgColour
+     * @return
+     */
+    private boolean isWithinTolerance(int colour, int bgColour) {
+        return (accepts(colour >>> 16, bgColour >>> 16)
+                & accepts(colour >>> 8, bgColour >>> 8)
+                & accepts(colour, bgColour)
+                & 1) != 0;
+    }
+
+    /**
+     * Looks up whether a channel level is acceptable for a background level.
+     * 
+     * @param level Channel level in the lowest 8 bits; higher bits are
+     *        ignored.
+     * @param bgLevel Background level in the lowest 8 bits; higher bits are
+     *        ignored.
+     * @return Value whose lowest bit is set if the level is acceptable.
+     */
+    private long accepts(int level, int bgLevel) {
+        level &= NUM_LEVELS - 1;
+        return acceptedLevels[(bgLevel & (NUM_LEVELS - 1)) * WORDS_PER_LEVEL
+                + (level >>> 6)] >>> level;
+    }
+
+}
@@ -0,0 +1,102 @@
+package main;
+
+/**
+ * Utility methods for computing 64-bit fingerprints of 3x3 pixel windows.
+ *
+ * A fingerprint is a polynomial hash of the window's 3 column hashes, so
+ * moving the window 1 pixel to the right only requires hashing the new
+ * column:
+ *
+ * <pre>
+ * F(x) = C(x - 1) * B^2 + C(x) * B + C(x + 1)
+ * F(x + 1) = (F(x) - C(x - 1) * B^2) * B + C(x + 2)
+ * </pre>
+ *
+ * Different windows may, in theory, share a fingerprint, but with 64 bits the
+ * chance of this is negligible.
+ */
+public final class WindowFingerprint {
+
+    /**
+     * Base of the polynomial (odd, so multiplication is invertible).
+     */
+    private static final long BASE = 0x9e3779b97f4a7c15L;
+
+    /**
+     * BASE squared; the weight of the left-most column.
+     */
+    private static final long BASE_SQUARED = BASE * BASE;
+
+    /**
+     * Prevent this class from being instantiated.
+     */
+    private WindowFingerprint() {}
+
+    /**
+     * Hashes a column of 3 pixels.
+     * 
+     * @param top
+     * @param middle
+     * @param bottom
+     * @return
+     */
+    public static long column(int top, int middle, int bottom) {
+        long h = (top & 0xffffffffL) * 0xc2b2ae3d27d4eb4fL;
+        h = (h ^ (middle & 0xffffffffL)) * 0x165667b19e3779f9L;
+        h = (h ^ (bottom & 0xffffffffL)) * 0xd6e8feb86659fd93L;
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * Hashes the column of the given pixel array that is centred on index i.
+     * 
+     * @param pixels
+     * @param width
+     * @param i
+     * @return
+     */
+    public static long column(int[] pixels, int width, int i) {
+        return column(pixels[i - width], pixels[i], pixels[i + width]);
+    }
+
+    /**
+     * Combines 3 column hashes into a window fingerprint.
+     * 
+     * @param left
+     * @param centre
+     * @param right
+     * @return
+     */
+    public static long window(long left, long centre, long right) {
+        return left * BASE_SQUARED + centre * BASE + right;
+    }
+
+    /**
+     * Moves a window fingerprint 1 pixel to the right.
+     * 
+     * @param fingerprint
+     * @param oldLeft Hash of the column leaving the window.
+     * @param newRight Hash of the column entering the window.
+     * @return
+     */
+    public static long slide(long fingerprint, long oldLeft, long newRight) {
+        return (fingerprint - oldLeft * BASE_SQUARED) * BASE + newRight;
+    }
+
+    /**
+     * Computes the fingerprint of the window centred on index i of the given
+     * pixel array.
+     * 
+     * @param pixels
+     * @param width
+     * @param i
+     * @return
+     */
+    public static long window(int[] pixels, int width, int i) {
+        return window(
+                column(pixels, width, i - 1),
+                column(pixels, width, i),
+                column(pixels, width, i + 1));
+    }
+
+}
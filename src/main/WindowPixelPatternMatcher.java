@@ -0,0 +1,170 @@
+package main;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * PixelPatternMatcher that "learns" every 3x3 window of pixels present in a
+ * background texture.
+ *
+ * A pixel will only be considered part of the background if the 3x3 window
+ * centred on it appears somewhere in the texture. This is the strictest
+ * possible smart-mode check, but because each window is stored as a 64-bit
+ * fingerprint, it only requires a single lookup per pixel.
+ *
+ * Fingerprints are computed incrementally along each row of the image being
+ * processed, so each pixel only needs to be read a few times.
+ */
+public class WindowPixelPatternMatcher implements PixelPatternMatcher {
+
+    /**
+     * Fingerprints of every window in the background texture.
+     */
+    private final LongHashSet windows = new LongHashSet();
+
+    /**
+     * Creates a WindowPixelPatternMatcher from the given image.
+     * 
+     * @param image
+     */
+    public WindowPixelPatternMatcher(BufferedImage image) {
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = ImageUtils.getPixels(image);
+
+        // Loop over the image, ignoring edge pixels
+        for (int y = 1; y < height - 1; y++) {
+            for (int x = 1; x < width - 1; x++) {
+                windows.add(WindowFingerprint.window(
+                        pixels, width, y * width + x));
+            }
+        }
+
+        System.out.println("Pattern contains " + windows.size() + " windows");
+    }
+
+    @Override
+    public boolean matches(BufferedImage image, int x, int y) {
+        return windows.contains(WindowFingerprint.window(
+                column(image, x - 1, y),
+                column(image, x, y),
+                column(image, x + 1, y)));
+    }
+
+    /**
+     * Hashes the column of 3 pixels centred on the given pixel.
+     * 
+     * @param image
+     * @param x
+     * @param y
+     * @return
+     */
+    private static long column(BufferedImage image, int x, int y) {
+        return WindowFingerprint.column(
+                image.getRGB(x, y - 1),
+                image.getRGB(x, y),
+                image.getRGB(x, y + 1));
+    }
+
+    @Override
+    public BitMask matchAll(BufferedImage image) {
+        return matchAll(image, null);
+    }
+
+    /**
+     * Only the candidate pixels are checked, or all pixels if candidates is
+     * null. The fingerprint is slid along each run of candidates, so only the
+     * columns of the candidates and their neighbours are read.
+     */
+    @Override
+    public BitMask matchAll(BufferedImage image, BitMask candidates) {
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = ImageUtils.getPixels(image);
+        BitMask result = new BitMask(width, height);
+
+        if (width < 3) {
+            return result;
+        }
+
+        for (int y = 1; y < height - 1; y++) {
+
+            if (candidates == null) {
+                matchRun(pixels, width, y, 1, width - 1, result);
+                continue;
+            }
+
+            int x = 1;
+            while (x < width - 1) {
+
+                if (candidates.getWord(x, y) == 0) {
+                    // Skip the rest of this word
+                    x = (x | 63) + 1;
+                    continue;
+                }
+
+                if (!candidates.get(x, y)) {
+                    x++;
+                    continue;
+                }
+
+                // Find the end of this run of candidates
+                int end = x + 1;
+                while (end < width - 1 && candidates.get(end, y)) {
+                    end++;
+                }
+
+                matchRun(pixels, width, y, x, end, result);
+                x = end;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Checks a run of pixels within a row, sliding the fingerprint along it.
+     * 
+     * @param pixels
+     * @param width
+     * @param y
+     * @param xStart First pixel to check (must be at least 1).
+     * @param xEnd Pixel after the last pixel to check (must be at most
+     *        width - 1).
+     * @param result Mask in which to set the bits of matching pixels.
+     */
+    private void matchRun(int[] pixels, int width, int y, int xStart,
+            int xEnd, BitMask result) {
+
+        int rowStart = y * width;
+
+        // Hashes of the columns in the current window
+        long left = WindowFingerprint.column(
+                pixels, width, rowStart + xStart - 1);
+        long centre = WindowFingerprint.column(
+                pixels, width, rowStart + xStart);
+        long right = WindowFingerprint.column(
+                pixels, width, rowStart + xStart + 1);
+        long fingerprint = WindowFingerprint.window(left, centre, right);
+
+        for (int x = xStart; x < xEnd; x++) {
+
+            if (windows.contains(fingerprint)) {
+                result.set(x, y);
+            }
+
+            if (x + 1 < xEnd) {
+                // Slide the window to the right
+                long next = WindowFingerprint.column(
+                        pixels, width, rowStart + x + 2);
+                fingerprint = WindowFingerprint.slide(
+                        fingerprint, left, next);
+                left = centre;
+                centre = right;
+                right = next;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package main;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Checks the tile size detected by TiledPixelPatternMatcher.
+ *
+ * Run from the `src` directory after compiling the main sources (see
+ * README). Exits with a non-zero status if any check fails.
+ */
+public class TiledPixelPatternMatcherTest {
+
+    /**
+     * Width of each test background.
+     */
+    private static final int WIDTH = 100;
+
+    /**
+     * Height of each test background.
+     */
+    private static final int HEIGHT = 60;
+
+    /**
+     * Number of checks that have failed.
+     */
+    private static int numFailures;
+
+    /**
+     * Entry point for the tests.
+     * 
+     * @param args
+     */
+    public static void main(String[] args) {
+
+        Random random = new Random(1);
+        int[] colours = new int[15];
+        for (int i = 0; i < colours.length; i++) {
+            colours[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+
+        // A 5x3 tile, with every pixel of the tile a different colour
+        checkTileSize("5x3 tile",
+                background((x, y) -> colours[(y % 3) * 5 + x % 5]), 5, 3);
+
+        // Vertical stripes repeat horizontally only
+        checkTileSize("vertical stripes",
+                background((x, y) -> colours[x % 5]), 5, 1);
+
+        // Horizontal stripes repeat vertically only
+        checkTileSize("horizontal stripes",
+                background((x, y) -> colours[y % 4]), 1, 4);
+
+        checkTileSize("uniform",
+                background((x, y) -> colours[0]), 1, 1);
+
+        // Noise does not repeat at all
+        checkTileSize("noise",
+                background((x, y) -> colours[random.nextInt(colours.length)]),
+                WIDTH, HEIGHT);
+
+        if (numFailures > 0) {
+            System.out.println(numFailures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    /**
+     * Source of the colour of each pixel of a test background.
+     */
+    private interface Pattern {
+        int colourAt(int x, int y);
+    }
+
+    /**
+     * Creates a test background.
+     * 
+     * @param pattern
+     * @return
+     */
+    private static BufferedImage background(Pattern pattern) {
+        BufferedImage image =
+                new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image.setRGB(x, y, pattern.colourAt(x, y));
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Checks the tile size detected for the given background.
+     * 
+     * @param name
+     * @param background
+     * @param expectedWidth
+     * @param expectedHeight
+     */
+    private static void checkTileSize(String name, BufferedImage background,
+            int expectedWidth, int expectedHeight) {
+
+        TiledPixelPatternMatcher matcher =
+                new TiledPixelPatternMatcher(background, 0, 0, 0);
+        int width = matcher.getTileWidth();
+        int height = matcher.getTileHeight();
+
+        if (width == expectedWidth && height == expectedHeight) {
+            System.out.println("PASS " + name);
+        } else {
+            System.out.println("FAIL " + name + ": expected " +
+                    expectedWidth + "x" + expectedHeight + ", got " +
+                    width + "x" + height);
+            numFailures++;
+        }
+    }
+
+}
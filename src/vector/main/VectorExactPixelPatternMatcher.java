@@ -0,0 +1,222 @@
+package main;
+
+import java.awt.image.BufferedImage;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * ExactPixelPatternMatcher that classifies whole frames using SIMD
+ * instructions, via the (incubating) Java Vector API.
+ * 
+ * The algorithm is the same as the scalar implementation: each row of the
+ * image is compared to the background to produce a row of "equals background"
+ * flags, and the number of matching neighbours of each pixel is obtained by
+ * summing the flags of the surrounding 3x3 window. Here, however, each step
+ * processes a full vector of pixels at a time.
+ * 
+ * This requires the jdk.incubator.vector module, so it lives outside the main
+ * source tree and must be compiled separately (see README). Use
+ * ExactPixelPatternMatcher.create to select it at runtime when available.
+ */
+public class VectorExactPixelPatternMatcher extends ExactPixelPatternMatcher {
+
+    /**
+     * Vector shape to use; the widest supported by the current CPU.
+     */
+    private static final VectorSpecies<Integer> SPECIES =
+            IntVector.SPECIES_PREFERRED;
+
+    public VectorExactPixelPatternMatcher(
+            BufferedImage background,
+            int strictness,
+            int borderLeft,
+            int borderTop,
+            int borderRight,
+            int borderBottom) {
+        super(background,
+                strictness,
+                borderLeft,
+                borderTop,
+                borderRight,
+                borderBottom);
+    }
+
+    /**
+     * Comparing a full vector of pixels is cheap enough that skipping
+     * individual words would not pay off, so the whole image is classified,
+     * and any pixels that are not candidates are then discarded.
+     */
+    @Override
+    public MatchResult classify(BufferedImage image, BitMask candidates) {
+
+        MatchResult matchResult = classify(image);
+
+        if (candidates != null) {
+            matchResult.getBackground().and(candidates);
+            matchResult.getUncertain().and(candidates);
+        }
+
+        return matchResult;
+    }
+
+    @Override
+    public MatchResult classify(BufferedImage image) {
+
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+        BitMask result = new BitMask(imageWidth, imageHeight);
+        BitMask uncertain = new BitMask(imageWidth, imageHeight);
+
+        if (imageWidth < 3 || imageHeight < 3) {
+            // No pixels have a complete neighbourhood
+            return new MatchResult(result, uncertain);
+        }
+
+        int[] pixels = ImageUtils.getPixels(image);
+
+        // "Equals background" flags (0 or 1) for the rows above, at and below
+        // the current row
+        int[] above = new int[imageWidth];
+        int[] current = new int[imageWidth];
+        int[] below = new int[imageWidth];
+        findEqualPixels(pixels, imageWidth, 0, current);
+        findEqualPixels(pixels, imageWidth, 1, below);
+
+        // Number of equal pixels in each column of the 3 rows
+        int[] columnCounts = new int[imageWidth];
+
+        for (int y = 1; y < imageHeight - 1; y++) {
+
+            // Advance to the next row
+            int[] tmp = above;
+            above = current;
+            current = below;
+            below = tmp;
+            findEqualPixels(pixels, imageWidth, y + 1, below);
+
+            sumColumns(above, current, below, columnCounts);
+
+            classifyRow(y, current, columnCounts, result, uncertain);
+        }
+
+        return new MatchResult(result, uncertain);
+    }
+
+    /**
+     * Compares a row of the image to the background.
+     * 
+     * @param pixels
+     * @param imageWidth
+     * @param y
+     * @param equal Array to receive the flags: 1 if the pixel is the same
+     *        colour as the background, otherwise 0.
+     */
+    private void findEqualPixels(int[] pixels, int imageWidth, int y,
+            int[] equal) {
+
+        IntVector zero = IntVector.zero(SPECIES);
+        int i = y * imageWidth;
+        int j = y * width;
+        int x = 0;
+
+        for (; x < SPECIES.loopBound(imageWidth); x += SPECIES.length()) {
+            IntVector p = IntVector.fromArray(SPECIES, pixels, i + x);
+            IntVector b = IntVector.fromArray(SPECIES, background, j + x);
+            zero.blend(1, p.compare(VectorOperators.EQ, b))
+                    .intoArray(equal, x);
+        }
+
+        for (; x < imageWidth; x++) {
+            equal[x] = pixels[i + x] == background[j + x] ? 1 : 0;
+        }
+    }
+
+    /**
+     * Adds together the flags of 3 consecutive rows.
+     * 
+     * @param above
+     * @param current
+     * @param below
+     * @param columnCounts
+     */
+    private void sumColumns(int[] above, int[] current, int[] below,
+            int[] columnCounts) {
+
+        int length = columnCounts.length;
+        int x = 0;
+
+        for (; x < SPECIES.loopBound(length); x += SPECIES.length()) {
+            IntVector.fromArray(SPECIES, above, x)
+                    .add(IntVector.fromArray(SPECIES, current, x))
+                    .add(IntVector.fromArray(SPECIES, below, x))
+                    .intoArray(columnCounts, x);
+        }
+
+        for (; x < length; x++) {
+            columnCounts[x] = above[x] + current[x] + below[x];
+        }
+    }
+
+    /**
+     * Classifies the non-edge pixels of a row.
+     * 
+     * The column counts either side of each pixel are obtained by loading the
+     * counts at an offset of -1 and +1, which is equivalent to shifting the
+     * lanes of the centre vector.
+     * 
+     * @param y
+     * @param current
+     * @param columnCounts
+     * @param result
+     * @param uncertain
+     */
+    private void classifyRow(int y, int[] current, int[] columnCounts,
+            BitMask result, BitMask uncertain) {
+
+        // We classify x = 1 to (width - 2), which means the vectors at x - 1
+        // and x + 1 stay within bounds
+        int end = columnCounts.length - 1;
+        int x = 1;
+
+        for (; x + SPECIES.length() <= end; x += SPECIES.length()) {
+
+            IntVector equal = IntVector.fromArray(SPECIES, current, x);
+
+            // Sum the 3x3 window, excluding the pixel itself
+            IntVector validNeighbours =
+                    IntVector.fromArray(SPECIES, columnCounts, x - 1)
+                    .add(IntVector.fromArray(SPECIES, columnCounts, x))
+                    .add(IntVector.fromArray(SPECIES, columnCounts, x + 1))
+                    .sub(equal);
+
+            VectorMask<Integer> isEqual = equal.compare(VectorOperators.EQ, 1);
+            VectorMask<Integer> isValid = validNeighbours
+                    .compare(VectorOperators.GE, strictness);
+
+            result.setBits(x, y, isEqual.and(isValid).toLong());
+            uncertain.setBits(x, y, isEqual.andNot(isValid).toLong());
+        }
+
+        for (; x < end; x++) {
+
+            if (current[x] == 0) {
+                continue;
+            }
+
+            int validNeighbours = columnCounts[x - 1]
+                    + columnCounts[x]
+                    + columnCounts[x + 1]
+                    - 1;
+
+            if (validNeighbours >= strictness) {
+                result.set(x, y);
+            } else {
+                uncertain.set(x, y);
+            }
+        }
+    }
+
+}